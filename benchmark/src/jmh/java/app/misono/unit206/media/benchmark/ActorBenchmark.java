@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media.benchmark;
+
+import app.misono.unit206.media.Actor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	Payload hand-off through the bounded Actor mailbox, as MediaEncoder does per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActorBenchmark {
+	private static final int BATCH = 1000;
+	private static final int MSG_PAYLOAD = 1;
+	private static final int MSG_QUIT = 2;
+
+	@Param({ "4", "16" })
+	public int capacity;
+
+	private byte[] payload;
+	private Sink sink;
+
+	@Setup
+	public void setup() {
+		payload = new byte[64];
+		sink = new Sink(capacity);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sink.send(MSG_QUIT);
+	}
+
+	/**
+	 *	One producer sends payloads, blocking while the mailbox is full.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long sendPayload() {
+		for (int i = 0; i < BATCH; i++) {
+			sink.send(MSG_PAYLOAD, payload, i);
+		}
+		sink.sendSync(0, null);
+		return sink.sum;
+	}
+
+	/**
+	 *	Round trip of a synchronous message.
+	 */
+	@Benchmark
+	public boolean sendSync() {
+		return sink.sendSync(0, null);
+	}
+
+	private static final class Sink extends Actor {
+		private long sum;
+
+		private Sink(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		protected void handleMessage(int what, Object obj, long arg) {
+			switch (what) {
+			case MSG_PAYLOAD:
+				sum += ((byte[])obj).length + arg;
+				break;
+			case MSG_QUIT:
+				quit();
+				break;
+			}
+		}
+
+		@Override
+		protected void done() {
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media.benchmark;
+
+import app.misono.unit206.media.LatencyHistogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	Per-frame cost of recording a latency, alone and contended by the encoder threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LatencyHistogramBenchmark {
+	private final LatencyHistogram histogram = new LatencyHistogram("bench");
+
+	private long value = 1;
+
+	@Benchmark
+	public void record() {
+		value = value * 6364136223846793005L + 1442695040888963407L;
+		histogram.record((value >>> 40) & 0xffffff);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void recordContended() {
+		histogram.record(System.nanoTime() & 0xffffff);
+	}
+
+	@Benchmark
+	public long percentile() {
+		return histogram.getValueAtPercentile(99);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media.benchmark;
+
+import app.misono.unit206.media.Rgb2Yuv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	RGB to YUV conversion of one frame for each FORMAT_* and resolution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Rgb2YuvBenchmark {
+	@Param({ "0", "1", "2", "3" })
+	public int format;
+
+	@Param({ "640x360", "1280x720", "1920x1080" })
+	public String resolution;
+
+	private int[] argb;
+	private byte[] yuv;
+	private int width, height;
+
+	@Setup
+	public void setup() {
+		String[] wh = resolution.split("x");
+		width = Integer.parseInt(wh[0]);
+		height = Integer.parseInt(wh[1]);
+		argb = new int[width * height];
+		Random rand = new Random(206);
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = 0xff000000 | rand.nextInt(0x1000000);
+		}
+		yuv = new byte[Rgb2Yuv.yuvSize(width, height)];
+	}
+
+	@Benchmark
+	public byte[] convert() {
+		Rgb2Yuv.convert(argb, 0, width, width, height, yuv, format);
+		return yuv;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media.benchmark;
+
+import app.misono.unit206.media.ExecutorTimerScheduler;
+import app.misono.unit206.media.JasaTimer;
+import app.misono.unit206.media.TimerScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	Scheduling cost of the JasaTimer backend on the JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerSchedulerBenchmark {
+	private static final int MSG_TIMEOUT = 0;
+	private static final int MSG_PING = 1;
+
+	private JasaTimer.TimerHandle watchdog;
+	private TimerScheduler scheduler;
+	private JasaTimer timer;
+	private volatile long handled;
+
+	@Setup
+	public void setup() {
+		scheduler = new ExecutorTimerScheduler("bench");
+		scheduler.start((what, obj) -> {
+			if (what == MSG_PING) {
+				handled++;
+			}
+		});
+		timer = JasaTimer.create(new ExecutorTimerScheduler("bench.timer"));
+		watchdog = timer.createHandle(obj -> { }, null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		scheduler.close();
+		timer.close();
+	}
+
+	/**
+	 *	Re-arms a watchdog timeout, as JasaTimer does when the earliest deadline changes.
+	 */
+	@Benchmark
+	public void rearm() {
+		scheduler.remove(MSG_TIMEOUT);
+		scheduler.sendAtTime(MSG_TIMEOUT, scheduler.uptimeMillis() + 1000);
+	}
+
+	/**
+	 *	Re-arms a TimerHandle, as the MediaDecoder watchdog does for every frame.
+	 */
+	@Benchmark
+	public void rescheduleHandle() {
+		watchdog.reschedule(1000);
+	}
+
+	/**
+	 *	Latency of a message to the scheduler thread and back.
+	 */
+	@Benchmark
+	public long roundTrip() {
+		long target = handled + 1;
+		scheduler.send(MSG_PING, null);
+		while (handled < target) {
+			Thread.yield();
+		}
+		return target;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ExecutorTimerSchedulerTest {
+	private ExecutorTimerScheduler scheduler;
+	private List<Integer> handled;
+	private CountDownLatch latch;
+
+	@Before
+	public void setUp() {
+		handled = new ArrayList<>();
+		scheduler = new ExecutorTimerScheduler("test");
+		scheduler.start((what, obj) -> {
+			synchronized (handled) {
+				handled.add(what);
+			}
+			latch.countDown();
+		});
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.close();
+	}
+
+	@Test
+	public void sendKeepsOrder() throws InterruptedException {
+		latch = new CountDownLatch(100);
+		List<Integer> expected = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			scheduler.send(i, null);
+			expected.add(i);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(expected, handled);
+	}
+
+	@Test
+	public void sendAtTimeFiresByTime() throws InterruptedException {
+		latch = new CountDownLatch(3);
+		long now = scheduler.uptimeMillis();
+		scheduler.sendAtTime(3, now + 150);
+		scheduler.sendAtTime(1, now + 50);
+		scheduler.sendAtTime(2, now + 100);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(1, 2, 3), handled);
+	}
+
+	@Test
+	public void removeCancelsDelayedMessages() throws InterruptedException {
+		latch = new CountDownLatch(1);
+		long now = scheduler.uptimeMillis();
+		scheduler.sendAtTime(1, now + 50);
+		scheduler.sendAtTime(1, now + 60);
+		scheduler.sendAtTime(2, now + 200);
+		scheduler.remove(1);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(2), handled);
+	}
+}
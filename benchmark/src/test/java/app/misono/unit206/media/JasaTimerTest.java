@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class JasaTimerTest {
+	private JasaTimer timer;
+	private List<Object> fired;
+
+	@Before
+	public void setUp() {
+		fired = new ArrayList<>();
+		timer = JasaTimer.create(new ExecutorTimerScheduler("test"));
+	}
+
+	@After
+	public void tearDown() {
+		timer.close();
+	}
+
+	private JasaTimer.Callback record(CountDownLatch latch) {
+		return obj -> {
+			synchronized (fired) {
+				fired.add(obj);
+			}
+			latch.countDown();
+		};
+	}
+
+	@Test
+	public void timersFireByDeadline() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(3);
+		timer.start(150, record(latch), "c");
+		timer.start(50, record(latch), "a");
+		timer.start(100, record(latch), "b");
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a", "b", "c"), fired);
+	}
+
+	@Test
+	public void stopCancelsTimer() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		JasaTimer.Callback canceled = record(new CountDownLatch(1));
+		Object obj = "canceled";
+		timer.start(50, canceled, obj);
+		timer.stop(canceled, obj);
+		timer.start(150, record(latch), "kept");
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("kept"), fired);
+	}
+
+	@Test
+	public void rescheduleReplacesDeadline() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		JasaTimer.TimerHandle handle = timer.createHandle(record(latch), "handle");
+		handle.reschedule(50);
+		handle.reschedule(300);
+		assertFalse(latch.await(150, TimeUnit.MILLISECONDS));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("handle"), fired);
+	}
+
+	@Test
+	public void cancelStopsHandle() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		JasaTimer.TimerHandle handle = timer.createHandle(record(new CountDownLatch(1)), "canceled");
+		handle.reschedule(50);
+		handle.cancel();
+		timer.start(150, record(latch), "kept");
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("kept"), fired);
+	}
+
+	@Test
+	public void throwingCallbackKeepsDispatching() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(2);
+		timer.start(50, obj -> {
+			throw new IllegalStateException("callback failure");
+		}, null);
+		JasaTimer.TimerHandle handle = timer.createHandle(obj -> {
+			throw new IllegalStateException("handle failure");
+		}, null);
+		handle.reschedule(60);
+		timer.start(200, record(latch), "later");
+		JasaTimer.TimerHandle rearmed = timer.createHandle(record(latch), "rearmed");
+		rearmed.reschedule(250);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("later", "rearmed"), fired);
+
+		CountDownLatch again = new CountDownLatch(1);
+		JasaTimer.TimerHandle after = timer.createHandle(record(again), "again");
+		handle.reschedule(10);
+		after.reschedule(50);
+		assertTrue(again.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void dispatchIsBracketedByHooks() throws InterruptedException {
+		timer.close();
+		ExecutorTimerScheduler base = new ExecutorTimerScheduler("hooked");
+		timer = JasaTimer.create(new TimerScheduler() {
+			@Override
+			public void start(Target target) {
+				base.start(target);
+			}
+
+			@Override
+			public long uptimeMillis() {
+				return base.uptimeMillis();
+			}
+
+			@Override
+			public void send(int what, Object obj) {
+				base.send(what, obj);
+			}
+
+			@Override
+			public void sendAtTime(int what, long uptimeMillis) {
+				base.sendAtTime(what, uptimeMillis);
+			}
+
+			@Override
+			public void remove(int what) {
+				base.remove(what);
+			}
+
+			@Override
+			public void beginDispatch() {
+				synchronized (fired) {
+					fired.add("begin");
+				}
+			}
+
+			@Override
+			public void endDispatch() {
+				synchronized (fired) {
+					fired.add("end");
+				}
+			}
+
+			@Override
+			public void close() {
+				base.close();
+			}
+		});
+		CountDownLatch latch = new CountDownLatch(1);
+		timer.start(50, obj -> {
+			throw new IllegalStateException("callback failure");
+		}, null);
+		timer.start(200, record(latch), "fired");
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		synchronized (fired) {
+			assertEquals(Arrays.asList("begin", "end", "begin", "fired", "end"), fired);
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.WorkerThread;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	Handles messages one by one on a shared executor instead of a dedicated thread.
+ *	The mailbox is bounded and has two lanes, urgent messages are handled before normal ones.
+ *	A message is (what, obj, arg), so sending does not allocate.
+ *	handleMessage() should not block for long: while it waits, e.g. for a codec buffer, it holds a thread
+ *	of the executor, and actors beyond the pool size wait for it. Never wait for another actor on the
+ *	same bounded executor, give such an actor its own executor instead.
+ */
+public abstract class Actor {
+	public static final int LANE_NORMAL = 0;
+	public static final int LANE_URGENT = 1;
+
+	private static final int WHAT_RUNNABLE = Integer.MIN_VALUE;
+	private static final int BATCH = 32;			// messages handled before yielding the executor thread
+	private static final long SEC_KEEP_ALIVE = 30;	// idle threads of the shared executor are reclaimed by then
+
+	private static ExecutorService shared;
+
+	private final Executor executor;
+	private final Runnable drain;
+	private final Object lock;
+	private final Lane[] lanes;
+
+	private boolean scheduled, quit, finished, stamp;
+	private long queueNanos;
+	private int waiters;
+
+	public Actor(int capacity) {
+		this(getSharedExecutor(), capacity, capacity);
+	}
+
+	public Actor(Executor executor, int capacity, int capacityUrgent) {
+		this.executor = executor;
+		lock = new Object();
+		lanes = new Lane[] {
+			new Lane(capacity),
+			new Lane(capacityUrgent),
+		};
+		drain = this::drain;
+	}
+
+	/**
+	 *	Returns the executor shared by all actors created without an executor.
+	 *	It has one thread per processor at most, busy actors beyond that wait in its queue
+	 *	until a thread yields after a batch of messages or an empty mailbox. Idle threads are reclaimed.
+	 */
+	public static synchronized Executor getSharedExecutor() {
+		if (shared == null) {
+			int n = Math.max(2, Runtime.getRuntime().availableProcessors());
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, SEC_KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread th = new Thread(r, "Actor");
+					th.setDaemon(true);
+					return th;
+				});
+			pool.allowCoreThreadTimeOut(true);
+			shared = pool;
+		}
+		return shared;
+	}
+
+	/**
+	 *	Sends a message containing only the what value. Blocks while the mailbox is full.
+	 */
+	public boolean send(int what) {
+		return enqueue(LANE_NORMAL, what, null, 0, true) != 0;
+	}
+
+	public boolean send(int what, Object obj) {
+		return enqueue(LANE_NORMAL, what, obj, 0, true) != 0;
+	}
+
+	public boolean send(int what, Object obj, long arg) {
+		return enqueue(LANE_NORMAL, what, obj, arg, true) != 0;
+	}
+
+	/**
+	 *	Sends a message to the urgent lane, it is handled before any normal message.
+	 */
+	public boolean sendUrgent(int what, Object obj) {
+		return enqueue(LANE_URGENT, what, obj, 0, true) != 0;
+	}
+
+	/**
+	 *	Sends a message if the mailbox has room, never blocks.
+	 *
+	 *	@return false if the mailbox is full or the actor has quit.
+	 */
+	public boolean offer(int lane, int what, Object obj, long arg) {
+		return enqueue(lane, what, obj, arg, false) != 0;
+	}
+
+	/**
+	 *	Sends a message and waits until it is handled.
+	 *	Must not be called from {@link #handleMessage(int, Object, long)}.
+	 */
+	public boolean sendSync(int what, Object obj) {
+		long seq = enqueue(LANE_NORMAL, what, obj, 0, true);
+		if (seq != 0) {
+			Lane lane = lanes[LANE_NORMAL];
+			synchronized (lock) {
+				waiters++;
+				try {
+					while (!finished && lane.done < seq) {
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					waiters--;
+				}
+			}
+		}
+		return seq != 0;
+	}
+
+	/**
+	 *	Causes the Runnable r to be run in order with the messages.
+	 */
+	public boolean post(Runnable r) {
+		return enqueue(LANE_NORMAL, WHAT_RUNNABLE, r, 0, true) != 0;
+	}
+
+	/**
+	 *	Returns the number of pending messages in both lanes.
+	 */
+	public int getDepth() {
+		synchronized (lock) {
+			return lanes[LANE_NORMAL].count + lanes[LANE_URGENT].count;
+		}
+	}
+
+	public int getDepth(int lane) {
+		synchronized (lock) {
+			return lanes[lane].count;
+		}
+	}
+
+	/**
+	 *	Records the enqueued time of every message for {@link #getQueueNanos()}.
+	 */
+	protected void setQueueTimestamps(boolean stamp) {
+		synchronized (lock) {
+			this.stamp = stamp;
+		}
+	}
+
+	/**
+	 *	Returns how long the message being handled waited in the mailbox,
+	 *	or 0 unless {@link #setQueueTimestamps(boolean)} is enabled.
+	 */
+	@WorkerThread
+	protected long getQueueNanos() {
+		return queueNanos;
+	}
+
+	/**
+	 *	Discards the pending messages and calls {@link #done()} after the current message.
+	 */
+	protected void quit() {
+		boolean submit;
+		synchronized (lock) {
+			if (quit) return;
+
+			quit = true;
+			submit = !scheduled;
+			scheduled = true;
+		}
+		if (submit) {
+			executor.execute(drain);
+		}
+	}
+
+	/**
+	 *	@return the sequence number in the lane, or 0 if the message is not enqueued.
+	 */
+	private long enqueue(int idx, int what, Object obj, long arg, boolean block) {
+		Lane lane = lanes[idx];
+		boolean submit;
+		long seq;
+		synchronized (lock) {
+			while (!quit && lane.count == lane.whats.length) {
+				if (!block) return 0;
+
+				waiters++;
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return 0;
+				} finally {
+					waiters--;
+				}
+			}
+			if (quit) return 0;
+
+			seq = lane.push(what, obj, arg, stamp ? System.nanoTime() : 0);
+			submit = !scheduled;
+			scheduled = true;
+		}
+		if (submit) {
+			executor.execute(drain);
+		}
+		return seq;
+	}
+
+	private void drain() {
+		boolean resubmit = true;
+		try {
+			for (int i = 0; i < BATCH; i++) {
+				Lane lane;
+				int what;
+				Object obj;
+				long arg;
+				synchronized (lock) {
+					if (quit) {
+						finish();
+						resubmit = false;
+						break;
+					}
+					lane = lanes[LANE_URGENT].count != 0 ? lanes[LANE_URGENT] : lanes[LANE_NORMAL];
+					if (lane.count == 0) {
+						scheduled = false;
+						resubmit = false;
+						break;
+					}
+					int head = lane.head;
+					what = lane.whats[head];
+					obj = lane.objs[head];
+					arg = lane.args[head];
+					queueNanos = lane.nanos[head] != 0 ? System.nanoTime() - lane.nanos[head] : 0;
+					lane.pop();
+					if (waiters != 0) {
+						lock.notifyAll();
+					}
+				}
+				try {
+					if (what == WHAT_RUNNABLE) {
+						((Runnable)obj).run();
+					} else {
+						handleMessage(what, obj, arg);
+					}
+				} finally {
+					synchronized (lock) {
+						lane.done++;
+						if (waiters != 0) {
+							lock.notifyAll();
+						}
+					}
+				}
+			}
+		} finally {
+			if (resubmit) {
+				executor.execute(drain);
+			}
+		}
+		if (finished) {
+			done();
+		}
+	}
+
+	/**
+	 *	Called with the lock held.
+	 */
+	private void finish() {
+		for (Lane lane : lanes) {
+			lane.clear();
+		}
+		finished = true;
+		lock.notifyAll();
+	}
+
+	private static final class Lane {
+		private final int[] whats;
+		private final Object[] objs;
+		private final long[] args;
+		private final long[] nanos;
+
+		private int head, count;
+		private long sent, done;
+
+		private Lane(int capacity) {
+			whats = new int[capacity];
+			objs = new Object[capacity];
+			args = new long[capacity];
+			nanos = new long[capacity];
+		}
+
+		private long push(int what, Object obj, long arg, long nano) {
+			int tail = (head + count) % whats.length;
+			whats[tail] = what;
+			objs[tail] = obj;
+			args[tail] = arg;
+			nanos[tail] = nano;
+			count++;
+			return ++sent;
+		}
+
+		private void pop() {
+			objs[head] = null;
+			head = (head + 1) % whats.length;
+			count--;
+		}
+
+		private void clear() {
+			while (count != 0) {
+				pop();
+			}
+			done = sent;
+		}
+	}
+
+	@WorkerThread
+	protected abstract void handleMessage(int what, Object obj, long arg);
+
+	@WorkerThread
+	protected abstract void done();
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+
+/**
+ *	Bounded pool of reference counted bitmaps.
+ *	{@link #acquire()} blocks only while every bitmap is checked out.
+ *	A bitmap is kept in the pool only if it fits in {@link MediaMemoryBudget}, otherwise it is recycled when released.
+ */
+public final class BitmapPool implements Closeable {
+	private final ArrayDeque<PooledBitmap> free;
+	private final int count;
+
+	private boolean closed;
+
+	public BitmapPool(int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("count must be positive:" + count);
+		}
+		this.count = count;
+		free = new ArrayDeque<>(count);
+		for (int i = 0; i < count; i++) {
+			free.add(new PooledBitmap());
+		}
+	}
+
+	/**
+	 *	Returns a free entry with one reference. Its bitmap is null until it is set for the first time.
+	 */
+	@NonNull
+	public PooledBitmap acquire() throws InterruptedException {
+		synchronized (free) {
+			for ( ; ; ) {
+				if (closed) {
+					throw new IllegalStateException("BitmapPool is already closed...");
+				}
+				PooledBitmap rc = free.poll();
+				if (rc != null) {
+					rc.refs = 1;
+					return rc;
+				}
+				free.wait();
+			}
+		}
+	}
+
+	/**
+	 *	Returns the number of entries not checked out.
+	 */
+	public int getAvailable() {
+		synchronized (free) {
+			return free.size();
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 *	Recycles the free bitmaps, bitmaps checked out are recycled when they are released.
+	 */
+	@Override
+	public void close() {
+		synchronized (free) {
+			closed = true;
+			for (PooledBitmap p : free) {
+				p.recycle();
+			}
+			free.clear();
+			free.notifyAll();
+		}
+	}
+
+	public final class PooledBitmap {
+		private Bitmap bitmap;
+		private int refs;
+		private boolean acquired;
+
+		private PooledBitmap() {
+		}
+
+		@Nullable
+		public Bitmap getBitmap() {
+			return bitmap;
+		}
+
+		/**
+		 *	Replaces the bitmap, e.g. when the frame size changes. Only the owner of the single reference should call it.
+		 */
+		public void setBitmap(@NonNull Bitmap bitmap) {
+			if (this.bitmap == bitmap) {
+				return;
+			}
+			recycle();
+			acquired = MediaMemoryBudget.getInstance().tryAcquireOrCharge(MediaMemoryBudget.COMPONENT_BITMAP, bitmap.getByteCount());
+			this.bitmap = bitmap;
+		}
+
+		/**
+		 *	Adds a reference to keep the bitmap after the callback returns.
+		 */
+		@AnyThread
+		public void retain() {
+			synchronized (free) {
+				if (refs <= 0) {
+					throw new IllegalStateException("PooledBitmap is already released...");
+				}
+				refs++;
+			}
+		}
+
+		/**
+		 *	Drops a reference, the bitmap returns to the pool when no reference remains.
+		 *	A bitmap out of the budget is recycled then, the entry returns without it.
+		 */
+		@AnyThread
+		public void release() {
+			synchronized (free) {
+				if (refs <= 0) {
+					throw new IllegalStateException("PooledBitmap is already released...");
+				}
+				if (--refs == 0) {
+					if (closed) {
+						recycle();
+					} else {
+						if (!acquired) {
+							recycle();
+						}
+						free.add(this);
+						free.notifyAll();
+					}
+				}
+			}
+		}
+
+		private void recycle() {
+			if (bitmap != null) {
+				MediaMemoryBudget.getInstance().release(MediaMemoryBudget.COMPONENT_BITMAP, bitmap.getByteCount(), acquired);
+				bitmap.recycle();
+				bitmap = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *	Ranks the encoders and decoders of a MIME type by their throughput, instead of the first match
+ *	of MediaCodec.createEncoderByType(). Hardware codecs come first, then the higher frame rate
+ *	from the performance points, the achievable frame rates or a short benchmark.
+ *	The rankings are cached in the process.
+ */
+public final class CodecSelector {
+	private static final String TAG = "CodecSelector";
+	private static final int[] FRAME_RATES = { 480, 240, 120, 60, 30, 24, 15 };
+	private static final long BENCHMARK_TIMEOUT_MSEC = 10000;
+
+	private static final Map<String, List<Rank>> cache = new HashMap<>();
+
+	private CodecSelector() {
+	}
+
+	/**
+	 *	A codec and its estimated throughput.
+	 */
+	public static final class Rank {
+		public final String name;
+		public final boolean hardware;
+		public final int[] colorFormats;
+		public final MediaCodecInfo.CodecCapabilities capabilities;
+		public final double fps;			//	frames per second at the ranked size, 0 if unknown
+		public final boolean measured;		//	fps is measured by benchmarkEncoders()
+
+		private Rank(String name, boolean hardware, MediaCodecInfo.CodecCapabilities capabilities, double fps, boolean measured) {
+			this.name = name;
+			this.hardware = hardware;
+			this.capabilities = capabilities;
+			this.colorFormats = capabilities.colorFormats;
+			this.fps = fps;
+			this.measured = measured;
+		}
+
+		public boolean hasColorFormat(int colorFormat) {
+			for (int c : colorFormats) {
+				if (c == colorFormat) return true;
+			}
+			return false;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%s hw:%b fps:%.1f%s", name, hardware, fps, measured ? "(measured)" : "");
+		}
+	}
+
+	/**
+	 *	Returns the encoders of <tt>mime</tt> supporting the size, the fastest first.
+	 *
+	 *	@param width	0 to skip the size check and rank at 1280x720
+	 */
+	@NonNull
+	public static List<Rank> getEncoders(@NonNull String mime, int width, int height) {
+		return getRanks(mime, true, width, height);
+	}
+
+	/**
+	 *	Returns the decoders of <tt>mime</tt> supporting the size, the fastest first.
+	 *
+	 *	@param width	0 to skip the size check and rank at 1280x720
+	 */
+	@NonNull
+	public static List<Rank> getDecoders(@NonNull String mime, int width, int height) {
+		return getRanks(mime, false, width, height);
+	}
+
+	/**
+	 *	Creates the fastest encoder for <tt>fmt</tt> which accepts its KEY_COLOR_FORMAT, if any.
+	 *	The result is in the Uninitialized state.
+	 */
+	@NonNull
+	public static MediaCodec createEncoder(@NonNull MediaFormat fmt) throws IOException {
+		return create(fmt, true);
+	}
+
+	/**
+	 *	Creates the fastest decoder for <tt>fmt</tt>. The result is in the Uninitialized state.
+	 */
+	@NonNull
+	public static MediaCodec createDecoder(@NonNull MediaFormat fmt) throws IOException {
+		return create(fmt, false);
+	}
+
+	/**
+	 *	Returns the encoder which {@link #createEncoder(MediaFormat)} tries first, or null if none.
+	 */
+	@Nullable
+	public static Rank findEncoder(@NonNull MediaFormat fmt) {
+		List<Rank> list = candidates(fmt, true);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	private static List<Rank> candidates(MediaFormat fmt, boolean encoder) {
+		String mime = fmt.getString(MediaFormat.KEY_MIME);
+		int width = fmt.containsKey(MediaFormat.KEY_WIDTH) ? fmt.getInteger(MediaFormat.KEY_WIDTH) : 0;
+		int height = fmt.containsKey(MediaFormat.KEY_HEIGHT) ? fmt.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+		int color = encoder && fmt.containsKey(MediaFormat.KEY_COLOR_FORMAT) ? fmt.getInteger(MediaFormat.KEY_COLOR_FORMAT) : 0;
+		List<Rank> rc = new ArrayList<>();
+		for (Rank rank : getRanks(mime, encoder, width, height)) {
+			if (color == 0 || rank.hasColorFormat(color)) {
+				rc.add(rank);
+			}
+		}
+		return rc;
+	}
+
+	private static MediaCodec create(MediaFormat fmt, boolean encoder) throws IOException {
+		String mime = fmt.getString(MediaFormat.KEY_MIME);
+		for (Rank rank : candidates(fmt, encoder)) {
+			try {
+				return MediaCodec.createByCodecName(rank.name);
+			} catch (IOException | IllegalArgumentException e) {
+				Log.w(TAG, "createByCodecName:" + rank.name + " " + e);
+			}
+		}
+		return encoder ? MediaCodec.createEncoderByType(mime) : MediaCodec.createDecoderByType(mime);
+	}
+
+	private static synchronized List<Rank> getRanks(String mime, boolean encoder, int width, int height) {
+		String key = keyOf(mime, encoder, width, height);
+		List<Rank> rc = cache.get(key);
+		if (rc == null) {
+			rc = 21 <= Build.VERSION.SDK_INT ? rank21(mime, encoder, width, height) : rankLegacy(mime, encoder);
+			cache.put(key, rc);
+		}
+		return rc;
+	}
+
+	private static String keyOf(String mime, boolean encoder, int width, int height) {
+		return mime + (encoder ? "/enc/" : "/dec/") + width + "x" + height;
+	}
+
+	private static List<Rank> rankLegacy(String mime, boolean encoder) {
+		List<Rank> rc = new ArrayList<>();
+		int n = MediaCodecList.getCodecCount();
+		for (int i = 0; i < n; i++) {
+			MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+			if (info.isEncoder() == encoder && supports(info, mime)) {
+				try {
+					MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mime);
+					rc.add(new Rank(info.getName(), !isSoftwareName(info.getName()), caps, 0, false));
+				} catch (IllegalArgumentException e) {
+					//	nop
+				}
+			}
+		}
+		sort(rc);
+		return rc;
+	}
+
+	@RequiresApi(21)
+	private static List<Rank> rank21(String mime, boolean encoder, int width, int height) {
+		int w = width != 0 ? width : 1280;
+		int h = width != 0 ? height : 720;
+		List<Rank> rc = new ArrayList<>();
+		for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+			if (info.isEncoder() != encoder || !supports(info, mime)) continue;
+			MediaCodecInfo.CodecCapabilities caps;
+			try {
+				caps = info.getCapabilitiesForType(mime);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+			if (caps.isFeatureRequired(MediaCodecInfo.CodecCapabilities.FEATURE_SecurePlayback)
+					|| caps.isFeatureRequired(MediaCodecInfo.CodecCapabilities.FEATURE_TunneledPlayback)) {
+				continue;								//	needs a secure or tunneled session, not usable for plain buffers
+			}
+			MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+			if (video == null || (width != 0 && !video.isSizeSupported(width, height))) continue;
+			boolean hardware = 29 <= Build.VERSION.SDK_INT ? info.isHardwareAccelerated() : !isSoftwareName(info.getName());
+			rc.add(new Rank(info.getName(), hardware, caps, estimateFps(video, w, h), false));
+		}
+		sort(rc);
+		return rc;
+	}
+
+	@RequiresApi(21)
+	private static double estimateFps(MediaCodecInfo.VideoCapabilities video, int width, int height) {
+		if (29 <= Build.VERSION.SDK_INT) {
+			List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points = video.getSupportedPerformancePoints();
+			if (points != null && !points.isEmpty()) {
+				for (int fps : FRAME_RATES) {
+					MediaCodecInfo.VideoCapabilities.PerformancePoint want = new MediaCodecInfo.VideoCapabilities.PerformancePoint(width, height, fps);
+					for (MediaCodecInfo.VideoCapabilities.PerformancePoint p : points) {
+						if (p.covers(want)) return fps;
+					}
+				}
+			}
+		}
+		if (23 <= Build.VERSION.SDK_INT) {
+			try {
+				Range<Double> r = video.getAchievableFrameRatesFor(width, height);
+				if (r != null) return r.getUpper();
+			} catch (IllegalArgumentException e) {
+				//	unsupported size
+			}
+		}
+		return 0;
+	}
+
+	private static boolean supports(MediaCodecInfo info, String mime) {
+		for (String type : info.getSupportedTypes()) {
+			if (type.equalsIgnoreCase(mime)) return true;
+		}
+		return false;
+	}
+
+	private static boolean isSoftwareName(String name) {
+		String s = name.toLowerCase(Locale.US);
+		return s.startsWith("omx.google.") || s.startsWith("c2.android.") || s.startsWith("omx.ffmpeg.")
+			|| (!s.startsWith("omx.") && !s.startsWith("c2."));
+	}
+
+	/**
+	 *	Hardware first, then the higher fps. The order of MediaCodecList is kept for ties.
+	 */
+	private static void sort(List<Rank> list) {
+		Collections.sort(list, (a, b) -> {
+			if (a.hardware != b.hardware) return a.hardware ? -1 : 1;
+			return Double.compare(b.fps, a.fps);
+		});
+	}
+
+	/**
+	 *	Encodes <tt>frames</tt> synthetic YUV frames with every encoder of <tt>mime</tt>,
+	 *	and replaces the cached ranking of the size with the measured frame rates.
+	 *	Takes a few seconds, call it once, e.g. at the first launch.
+	 */
+	@WorkerThread
+	@NonNull
+	public static List<Rank> benchmarkEncoders(@NonNull String mime, int width, int height, int frames) {
+		List<Rank> rc = new ArrayList<>();
+		for (Rank rank : getRanks(mime, true, width, height)) {
+			double fps = 0;
+			int color = findYuvColor(rank);
+			if (color != 0) {
+				try {
+					fps = benchmark(rank.name, mime, color, width, height, frames);
+				} catch (IOException | RuntimeException e) {
+					Log.w(TAG, "benchmark:" + rank.name + " " + e);
+				}
+			}
+			rc.add(new Rank(rank.name, rank.hardware, rank.capabilities, fps, true));
+		}
+		sort(rc);
+		synchronized (CodecSelector.class) {
+			cache.put(keyOf(mime, true, width, height), rc);
+		}
+		return rc;
+	}
+
+	private static int findYuvColor(Rank rank) {
+		for (int c : rank.colorFormats) {
+			switch (c) {
+			case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+			case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	private static double benchmark(String name, String mime, int color, int width, int height, int frames) throws IOException {
+		MediaFormat fmt = MediaEncoder.createVideoFormat(mime, width, height, 30);
+		fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, color);
+		MediaCodec codec = MediaCodec.createByCodecName(name);
+		try {
+			codec.configure(fmt, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			codec.start();
+			byte[] yuv = new byte[Rgb2Yuv.yuvSize(width, height)];
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			ByteBuffer[] inbuf = codec.getInputBuffers();
+			long start = SystemClock.elapsedRealtime();
+			long deadline = start + BENCHMARK_TIMEOUT_MSEC;
+			int queued = 0;
+			for ( ; ; ) {
+				if (queued <= frames) {
+					int index = codec.dequeueInputBuffer(1000);
+					if (0 <= index) {
+						if (queued < frames) {
+							for (int i = queued % 16; i < yuv.length; i += 16) {
+								yuv[i] = (byte)(i + queued * 7);
+							}
+							ByteBuffer bb = inbuf[index];
+							bb.clear();
+							bb.put(yuv, 0, Math.min(yuv.length, bb.remaining()));
+							codec.queueInputBuffer(index, 0, bb.position(), queued * 33333L, 0);
+						} else {
+							codec.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+						}
+						queued++;
+					}
+				}
+				int index = codec.dequeueOutputBuffer(info, queued <= frames ? 0 : 1000);
+				if (0 <= index) {
+					codec.releaseOutputBuffer(index, false);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+				}
+				if (deadline < SystemClock.elapsedRealtime()) {
+					throw new IllegalStateException("timeout");
+				}
+			}
+			long msec = Math.max(1, SystemClock.elapsedRealtime() - start);
+			return frames * 1000.0 / msec;
+		} finally {
+			try {
+				codec.stop();
+			} catch (IllegalStateException e) {
+				//	nop
+			}
+			codec.release();
+		}
+	}
+
+	/**
+	 *	Forgets the cached rankings.
+	 */
+	public static synchronized void clear() {
+		cache.clear();
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES10;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import app.misono.unit206.task.Taskz;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.concurrent.Executor;
+
+/**
+ *	Creates a <tt>columns</tt> x <tt>rows</tt> grid of frames of a video in one framebuffer.
+ *	Only sync samples spread over the duration are decoded, each is drawn into its own tile on the GPU
+ *	and the whole grid is read back once at the end.
+ */
+@RequiresApi(17)
+public final class ContactSheet {
+	private final int columns, rows, tileWidth, tileHeight;
+
+	private DecoderPool pool;
+
+	public ContactSheet(int columns, int rows, int tileWidth, int tileHeight) {
+		if (columns <= 0 || rows <= 0 || tileWidth <= 0 || tileHeight <= 0) {
+			throw new IllegalArgumentException("grid:" + columns + "x" + rows + " tile:" + tileWidth + "x" + tileHeight);
+		}
+		this.columns = columns;
+		this.rows = rows;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+	}
+
+	/**
+	 *	Borrows the decoder from the pool, see {@link MediaDecoder#setDecoderPool(DecoderPool)}.
+	 */
+	public void setDecoderPool(@Nullable DecoderPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 *	Returns the grid of (columns * tileWidth) x (rows * tileHeight). Tiles without a frame are black,
+	 *	e.g. when the video has less sync samples than tiles.
+	 */
+	@AnyThread
+	@NonNull
+	public Task<Bitmap> createTask(@NonNull Executor executor, @NonNull String path) {
+		return Taskz.call(executor, () -> create(path));
+	}
+
+	@WorkerThread
+	@NonNull
+	private Bitmap create(String path) throws Exception {
+		MediaExtractor extractor = new MediaExtractor();
+		extractor.setDataSource(path);
+		int tiles = columns * rows;
+		long usecStep = getDuration(extractor) / tiles;
+		MediaDecoder.Params params = new MediaDecoder.Params();
+		params.outWidth = columns * tileWidth;
+		params.outHeight = rows * tileHeight;
+		params.syncOnly = true;
+		params.usecStep = usecStep;
+		params.usecStart = usecStep / 2;
+		Sheet sheet = new Sheet(tiles);
+		MediaDecoder decoder = new MediaDecoder(extractor, params, sheet);
+		decoder.setRenderer(sheet);
+		decoder.setDecoderPool(pool);
+		Tasks.await(decoder.startTask());
+		if (sheet.bitmap == null) {
+			throw new IllegalStateException("no video track:" + path);
+		}
+		return sheet.bitmap;
+	}
+
+	/**
+	 *	Returns the tile rectangle letterboxed to the aspect ratio of the video.
+	 */
+	private Rect getTile(int index, int videoWidth, int videoHeight) {
+		int left = index % columns * tileWidth;
+		int top = index / columns * tileHeight;
+		int w = tileWidth;
+		int h = tileHeight;
+		if (0 < videoWidth && 0 < videoHeight) {
+			if ((long)videoWidth * tileHeight < (long)videoHeight * tileWidth) {
+				w = (int)((long)videoWidth * tileHeight / videoHeight);
+			} else {
+				h = (int)((long)videoHeight * tileWidth / videoWidth);
+			}
+		}
+		left += (tileWidth - w) / 2;
+		top += (tileHeight - h) / 2;
+		return new Rect(left, top, left + w, top + h);
+	}
+
+	/**
+	 *	Returns the duration of the first video track, 0 when unknown so that every sync sample is decoded.
+	 */
+	private static long getDuration(MediaExtractor extractor) {
+		int n = extractor.getTrackCount();
+		for (int i = 0; i < n; i++) {
+			MediaFormat fmt = extractor.getTrackFormat(i);
+			String mime = fmt.getString(MediaFormat.KEY_MIME);
+			if (mime != null && mime.startsWith("video/")) {
+				return fmt.containsKey(MediaFormat.KEY_DURATION) ? fmt.getLong(MediaFormat.KEY_DURATION) : 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 *	The state of one create() run, so that tasks of the same ContactSheet can run concurrently.
+	 */
+	private final class Sheet implements MediaDecoder.Callback, MediaDecoder.Renderer {
+		private final int tiles;
+
+		private volatile Bitmap bitmap;
+		private int videoWidth, videoHeight, drawn;
+
+		private Sheet(int tiles) {
+			this.tiles = tiles;
+		}
+
+		@Override
+		public void decoded(@NonNull MediaDecoder dec, int frameNo, MediaCodec.BufferInfo info) {
+			if (tiles <= frameNo + 1) {
+				dec.finish();
+			}
+		}
+
+		@Override
+		public void codecinfo(@NonNull MediaDecoder dec, MediaFormat fmt) {
+			videoWidth = fmt.getInteger(MediaFormat.KEY_WIDTH);
+			videoHeight = fmt.getInteger(MediaFormat.KEY_HEIGHT);
+		}
+
+		@Override
+		public void draw(@NonNull MediaDecoder dec, @NonNull MovieSurface surface, int frameNo, MediaCodec.BufferInfo info) {
+			if (frameNo < tiles) {
+				surface.drawImage(true, getTile(frameNo, videoWidth, videoHeight), frameNo == 0);
+				drawn++;
+			}
+		}
+
+		@Override
+		public void end(@NonNull MediaDecoder dec, @NonNull MovieSurface surface) {
+			if (drawn == 0) {
+				GLES10.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);		// the pooled pbuffer may hold an old frame
+				GLES10.glClear(GLES10.GL_COLOR_BUFFER_BIT);
+			}
+			bitmap = surface.getBitmap(null);
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *	Keeps stopped decoders keyed by MIME type and resolution class, so that sessions of short clips
+ *	can configure an existing codec instead of creating a new one.
+ *	Idle decoders are released after a while.
+ */
+public final class DecoderPool {
+	private static final int[] RESOLUTION_CLASSES = { 480, 720, 1080, 2160 };
+
+	private static DecoderPool me;
+
+	private final List<Idle> aIdle;
+	private final int maxIdlePerKey;
+	private final int msecIdle;
+
+	private JasaTimer.TimerHandle evictor;
+
+	/**
+	 *	@param maxIdlePerKey	the number of stopped decoders kept for each MIME type and resolution class
+	 *	@param msecIdle	stopped decoders are released after this idle time
+	 */
+	public DecoderPool(int maxIdlePerKey, int msecIdle) {
+		this.maxIdlePerKey = maxIdlePerKey;
+		this.msecIdle = msecIdle;
+		aIdle = new ArrayList<>();
+	}
+
+	/**
+	 *	Returns the process-wide pool which keeps 2 decoders per key for 10 seconds.
+	 */
+	public static synchronized DecoderPool getInstance() {
+		if (me == null) me = new DecoderPool(2, 10 * 1000);
+
+		return me;
+	}
+
+	/**
+	 *	Returns a decoder for the format in the Uninitialized state. The caller configures it.
+	 */
+	@NonNull
+	public MediaCodec acquire(@NonNull MediaFormat fmt) throws IOException {
+		String key = keyOf(fmt);
+		synchronized (aIdle) {
+			for (int i = aIdle.size() - 1; 0 <= i; i--) {
+				Idle idle = aIdle.get(i);
+				if (idle.key.equals(key)) {
+					aIdle.remove(i);
+					return idle.codec;
+				}
+			}
+		}
+		return CodecSelector.createDecoder(fmt);
+	}
+
+	/**
+	 *	Stops the decoder acquired for <tt>fmt</tt> and keeps it for the next session.
+	 */
+	public void recycle(@NonNull MediaFormat fmt, @NonNull MediaCodec codec) {
+		try {
+			codec.stop();
+		} catch (IllegalStateException e) {
+			discard(codec);
+			return;
+		}
+		String key = keyOf(fmt);
+		MediaCodec surplus = null;
+		synchronized (aIdle) {
+			int n = 0;
+			for (Idle idle : aIdle) {
+				if (idle.key.equals(key)) n++;
+			}
+			if (n < maxIdlePerKey) {
+				aIdle.add(new Idle(key, codec, SystemClock.uptimeMillis()));
+				if (evictor == null) {
+					evictor = JasaTimer.getInstance().createHandle(obj -> evict(), null);
+				}
+				evictor.reschedule(msecIdle);
+			} else {
+				surplus = codec;
+			}
+		}
+		if (surplus != null) {
+			discard(surplus);
+		}
+	}
+
+	/**
+	 *	Releases the decoder instead of keeping it, e.g. after an error.
+	 */
+	public void discard(@NonNull MediaCodec codec) {
+		try {
+			codec.release();
+		} catch (IllegalStateException e) {
+			// nop
+		}
+	}
+
+	/**
+	 *	Releases all the idle decoders.
+	 */
+	public void clear() {
+		List<Idle> list;
+		synchronized (aIdle) {
+			list = new ArrayList<>(aIdle);
+			aIdle.clear();
+		}
+		for (Idle idle : list) {
+			discard(idle.codec);
+		}
+	}
+
+	public int getIdleCount() {
+		synchronized (aIdle) {
+			return aIdle.size();
+		}
+	}
+
+	/**
+	 *	Called in the JasaTimer thread, releases the expired decoders in another thread.
+	 */
+	private void evict() {
+		List<MediaCodec> expired = new ArrayList<>();
+		long now = SystemClock.uptimeMillis();
+		long next = Long.MAX_VALUE;
+		synchronized (aIdle) {
+			for (int i = 0; i < aIdle.size(); ) {
+				Idle idle = aIdle.get(i);
+				if (idle.since + msecIdle <= now) {
+					expired.add(idle.codec);
+					aIdle.remove(i);
+					continue;
+				}
+				next = Math.min(next, idle.since + msecIdle);
+				i++;
+			}
+			if (next != Long.MAX_VALUE) {
+				evictor.reschedule((int)(next - now));
+			}
+		}
+		if (!expired.isEmpty()) {
+			new Thread(() -> {
+				for (MediaCodec codec : expired) {
+					discard(codec);
+				}
+			}).start();
+		}
+	}
+
+	private static String keyOf(MediaFormat fmt) {
+		String mime = fmt.getString(MediaFormat.KEY_MIME);
+		int size = Math.max(fmt.getInteger(MediaFormat.KEY_WIDTH), fmt.getInteger(MediaFormat.KEY_HEIGHT));
+		int cls = Integer.MAX_VALUE;
+		for (int r : RESOLUTION_CLASSES) {
+			if (size <= r * 16 / 9) {
+				cls = r;
+				break;
+			}
+		}
+		return mime + ":" + cls;
+	}
+
+	private static final class Idle {
+		private final MediaCodec codec;
+		private final String key;
+		private final long since;
+
+		private Idle(String key, MediaCodec codec, long since) {
+			this.key = key;
+			this.codec = codec;
+			this.since = since;
+		}
+	}
+}
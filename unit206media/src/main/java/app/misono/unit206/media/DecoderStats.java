@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *	Throughput, stall and drop statistics of a {@link MediaDecoder}.
+ *	It can be read from any thread while decoding.
+ */
+public final class DecoderStats {
+	private final AtomicLong decoded, rendered, skipped, stalls;
+	private final LatencyHistogram extractorRead, awaitImage, readback;
+
+	private volatile long nanoStart, nanoEnd;
+
+	DecoderStats() {
+		decoded = new AtomicLong();
+		rendered = new AtomicLong();
+		skipped = new AtomicLong();
+		stalls = new AtomicLong();
+		extractorRead = new LatencyHistogram("extractorRead");
+		awaitImage = new LatencyHistogram("awaitNewImage");
+		readback = new LatencyHistogram("getBitmap");
+	}
+
+	void start() {
+		nanoEnd = 0;
+		nanoStart = System.nanoTime();
+	}
+
+	void stop() {
+		nanoEnd = System.nanoTime();
+	}
+
+	void decoded(boolean render) {
+		decoded.incrementAndGet();
+		if (render) {
+			rendered.incrementAndGet();
+		} else {
+			skipped.incrementAndGet();
+		}
+	}
+
+	void stalled() {
+		stalls.incrementAndGet();
+	}
+
+	/**
+	 *	Returns the number of output buffers decoded.
+	 */
+	public long getFramesDecoded() {
+		return decoded.get();
+	}
+
+	/**
+	 *	Returns the number of frames passed to MediaDecoder.Callback.decoded().
+	 */
+	public long getFramesRendered() {
+		return rendered.get();
+	}
+
+	/**
+	 *	Returns the number of frames dropped by MediaDecoder.Params.fps.
+	 */
+	public long getFramesSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 *	Returns 1 if the watchdog found no output for a second, 0 otherwise.
+	 *	A stall ends the decoding, so it is counted at most once for each decoding.
+	 */
+	public long getStalls() {
+		return stalls.get();
+	}
+
+	/**
+	 *	Returns the decoded frames per second since the decoding started.
+	 */
+	public double getDecodedFps() {
+		long start = nanoStart;
+		if (start == 0) return 0;
+
+		long end = nanoEnd;
+		long nanos = (end != 0 ? end : System.nanoTime()) - start;
+		return nanos <= 0 ? 0 : decoded.get() * 1e9 / nanos;
+	}
+
+	/**
+	 *	Returns the histogram of MediaExtractor.readSampleData() in nanoseconds.
+	 */
+	@NonNull
+	public LatencyHistogram getExtractorRead() {
+		return extractorRead;
+	}
+
+	/**
+	 *	Returns the histogram of MovieSurface.awaitNewImage() in nanoseconds.
+	 */
+	@NonNull
+	public LatencyHistogram getAwaitNewImage() {
+		return awaitImage;
+	}
+
+	/**
+	 *	Returns the histogram of MediaDecoder.getBitmap() in nanoseconds.
+	 */
+	@NonNull
+	public LatencyHistogram getReadback() {
+		return readback;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "fps=%.1f decoded=%d rendered=%d skipped=%d stalls=%d\n",
+			getDecodedFps(),
+			getFramesDecoded(),
+			getFramesRendered(),
+			getFramesSkipped(),
+			getStalls()
+		)
+			+ extractorRead.summary(1000000) + " msec\n"
+			+ awaitImage.summary(1000000) + " msec\n"
+			+ readback.summary(1000000) + " msec";
+	}
+
+	public interface Listener {
+		@WorkerThread
+		void stats(@NonNull MediaDecoder decoder, @NonNull DecoderStats stats);
+	}
+}
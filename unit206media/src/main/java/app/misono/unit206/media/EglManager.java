@@ -0,0 +1,317 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *	Process-wide EGL state shared by the MovieSurface instances.
+ *	The display is initialized once and never terminated, every context belongs to the share group of one root context,
+ *	and pbuffer surfaces and pixel buffers are pooled by size.
+ */
+@RequiresApi(17)
+public final class EglManager {
+	private static final int MAX_POOL = 4;			// pooled pbuffers or pixel buffers for each size
+
+	private static EglManager me;
+
+	private final Map<Long, List<EGLSurface>> poolSurface;
+	private final Map<Integer, List<ByteBuffer>> poolPixel;
+	private final Set<ByteBuffer> unpooled;			// pixel buffers out of MediaMemoryBudget, not to be pooled
+	private final EGLDisplay display;
+	private final EGLConfig config;
+	private final EGLContext root;
+
+	private EGLConfig recordable;
+
+	private EglManager() {
+		final int[]	attribList1 = {
+			EGL14.EGL_RED_SIZE, 8,
+			EGL14.EGL_GREEN_SIZE, 8,
+			EGL14.EGL_BLUE_SIZE, 8,
+			EGL14.EGL_ALPHA_SIZE, 8,
+			EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+			EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+			EGL14.EGL_NONE
+		};
+
+		display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+		if (display == EGL14.EGL_NO_DISPLAY) {
+			throw new RuntimeException("unable to get EGL14 display");
+		}
+		int [] version = new int[2];
+		if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+			throw new RuntimeException("unable to initialize EGL14");
+		}
+
+		EGLConfig[] configs = new EGLConfig[1];
+		int [] numConfigs = new int[1];
+		if (!EGL14.eglChooseConfig(display, attribList1, 0, configs, 0, configs.length, numConfigs, 0)) {
+			throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
+		}
+		config = configs[0];
+		root = createContext(EGL14.EGL_NO_CONTEXT);
+		poolSurface = new HashMap<>();
+		poolPixel = new HashMap<>();
+		unpooled = Collections.newSetFromMap(new IdentityHashMap<>());
+	}
+
+	public static synchronized EglManager getInstance() {
+		if (me == null) me = new EglManager();
+
+		return me;
+	}
+
+	@NonNull
+	public EGLDisplay getDisplay() {
+		return display;
+	}
+
+	@NonNull
+	public EGLConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 *	Creates a GLES2 context in the shared group, so programs compiled in any context can be used in all of them.
+	 */
+	@NonNull
+	public EGLContext createContext() {
+		return createContext(root);
+	}
+
+	/**
+	 *	Returns the config which can render into the input surface of a video encoder, chosen at the first call.
+	 */
+	@NonNull
+	public synchronized EGLConfig getRecordableConfig() {
+		if (recordable == null) {
+			final int[]	attribList = {
+				EGL14.EGL_RED_SIZE, 8,
+				EGL14.EGL_GREEN_SIZE, 8,
+				EGL14.EGL_BLUE_SIZE, 8,
+				EGL14.EGL_ALPHA_SIZE, 8,
+				EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+				EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+				EGLExt.EGL_RECORDABLE_ANDROID, 1,
+				EGL14.EGL_NONE
+			};
+			EGLConfig[] configs = new EGLConfig[1];
+			int [] numConfigs = new int[1];
+			if (!EGL14.eglChooseConfig(display, attribList, 0, configs, 0, configs.length, numConfigs, 0) || numConfigs[0] == 0) {
+				throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
+			}
+			recordable = configs[0];
+		}
+		return recordable;
+	}
+
+	/**
+	 *	Creates a GLES2 context of the recordable config in the shared group.
+	 */
+	@NonNull
+	public EGLContext createRecordableContext() {
+		return createContext(getRecordableConfig(), root);
+	}
+
+	/**
+	 *	Creates a window surface of the recordable config on <tt>surface</tt>, e.g. the input surface of MediaEncoder.
+	 */
+	@NonNull
+	public EGLSurface createWindowSurface(@NonNull Surface surface) {
+		final int[]	surfaceAttribs = {
+			EGL14.EGL_NONE
+		};
+		EGLSurface rc = EGL14.eglCreateWindowSurface(display, getRecordableConfig(), surface, surfaceAttribs, 0);
+		checkEglError("eglCreateWindowSurface");
+		if (rc == null) {
+			throw new RuntimeException("surface was null");
+		}
+		return rc;
+	}
+
+	public void destroySurface(@Nullable EGLSurface surface) {
+		if (surface != null && surface != EGL14.EGL_NO_SURFACE) {
+			EGL14.eglDestroySurface(display, surface);
+		}
+	}
+
+	public void destroyContext(@NonNull EGLContext context) {
+		EGL14.eglDestroyContext(display, context);
+	}
+
+	/**
+	 *	Returns a pooled pbuffer surface of the size, or creates a new one.
+	 */
+	@NonNull
+	public EGLSurface obtainPbuffer(int width, int height) {
+		synchronized (poolSurface) {
+			List<EGLSurface> list = poolSurface.get(sizeKey(width, height));
+			if (list != null && !list.isEmpty()) {
+				return list.remove(list.size() - 1);
+			}
+		}
+		final int[]	surfaceAttribs = {
+			EGL14.EGL_WIDTH, width,
+			EGL14.EGL_HEIGHT, height,
+			EGL14.EGL_NONE
+		};
+		EGLSurface surface = EGL14.eglCreatePbufferSurface(display, config, surfaceAttribs, 0);
+		checkEglError("eglCreatePbufferSurface");
+		if (surface == null) {
+			throw new RuntimeException("surface was null");
+		}
+		return surface;
+	}
+
+	/**
+	 *	Returns the pbuffer surface which is no longer current to the pool.
+	 */
+	public void recyclePbuffer(int width, int height, @NonNull EGLSurface surface) {
+		synchronized (poolSurface) {
+			List<EGLSurface> list = poolSurface.get(sizeKey(width, height));
+			if (list == null) {
+				list = new ArrayList<>();
+				poolSurface.put(sizeKey(width, height), list);
+			}
+			if (list.size() < MAX_POOL) {
+				list.add(surface);
+				return;
+			}
+		}
+		EGL14.eglDestroySurface(display, surface);
+	}
+
+	/**
+	 *	Returns a pooled direct buffer in the native byte order with the capacity, or allocates a new one.
+	 *	A new buffer is reserved in {@link MediaMemoryBudget}. When it is exhausted, the buffer is only charged
+	 *	and is dropped instead of pooled by {@link #recyclePixelBuffer(ByteBuffer)}.
+	 */
+	@NonNull
+	public ByteBuffer obtainPixelBuffer(int capacity) {
+		synchronized (poolPixel) {
+			List<ByteBuffer> list = poolPixel.get(capacity);
+			if (list != null && !list.isEmpty()) {
+				ByteBuffer buf = list.remove(list.size() - 1);
+				buf.clear();
+				return buf;
+			}
+		}
+		boolean acquired = MediaMemoryBudget.getInstance().tryAcquireOrCharge(MediaMemoryBudget.COMPONENT_PIXEL_BUFFER, capacity);
+		ByteBuffer buf = ByteBuffer.allocateDirect(capacity);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		if (!acquired) {
+			synchronized (poolPixel) {
+				unpooled.add(buf);
+			}
+		}
+		return buf;
+	}
+
+	public void recyclePixelBuffer(@NonNull ByteBuffer buf) {
+		synchronized (poolPixel) {
+			if (unpooled.remove(buf)) {
+				MediaMemoryBudget.getInstance().discharge(MediaMemoryBudget.COMPONENT_PIXEL_BUFFER, buf.capacity());
+				return;
+			}
+			List<ByteBuffer> list = poolPixel.get(buf.capacity());
+			if (list == null) {
+				list = new ArrayList<>();
+				poolPixel.put(buf.capacity(), list);
+			}
+			if (list.size() < MAX_POOL) {
+				list.add(buf);
+				return;
+			}
+		}
+		MediaMemoryBudget.getInstance().release(MediaMemoryBudget.COMPONENT_PIXEL_BUFFER, buf.capacity());
+	}
+
+	/**
+	 *	Destroys the pooled pbuffers and drops the pooled pixel buffers.
+	 */
+	public void trim() {
+		List<EGLSurface> surfaces = new ArrayList<>();
+		synchronized (poolSurface) {
+			for (List<EGLSurface> list : poolSurface.values()) {
+				surfaces.addAll(list);
+			}
+			poolSurface.clear();
+		}
+		for (EGLSurface surface : surfaces) {
+			EGL14.eglDestroySurface(display, surface);
+		}
+		long bytes = 0;
+		synchronized (poolPixel) {
+			for (List<ByteBuffer> list : poolPixel.values()) {
+				for (ByteBuffer buf : list) {
+					bytes += buf.capacity();
+				}
+			}
+			poolPixel.clear();
+		}
+		MediaMemoryBudget.getInstance().release(MediaMemoryBudget.COMPONENT_PIXEL_BUFFER, bytes);
+	}
+
+	private EGLContext createContext(EGLContext share) {
+		return createContext(config, share);
+	}
+
+	private EGLContext createContext(EGLConfig config, EGLContext share) {
+	    final int[]	attribList2 = {
+			EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+			EGL14.EGL_NONE
+	    };
+		EGLContext context = EGL14.eglCreateContext(display, config, share, attribList2, 0);
+		checkEglError("eglCreateContext");
+		if (context == null) {
+			throw new RuntimeException("null context");
+		}
+		return context;
+	}
+
+	private static long sizeKey(int width, int height) {
+		return ((long)width << 32) | height;
+	}
+
+	private static void checkEglError(String msg) {
+		int error = EGL14.eglGetError();
+		if (error != EGL14.EGL_SUCCESS) {
+			throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
+		}
+	}
+}
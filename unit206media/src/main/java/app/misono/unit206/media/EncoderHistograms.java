@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.NonNull;
+
+/**
+ *	{@link EncoderMetrics} which records every stage into a {@link LatencyHistogram}.
+ */
+public final class EncoderHistograms implements EncoderMetrics {
+	private static final String[] NAMES = {
+		"convert", "queue", "dequeueInput", "codec", "write",
+	};
+
+	private final LatencyHistogram[] stages;
+	private final LatencyHistogram bytes;
+
+	public EncoderHistograms() {
+		stages = new LatencyHistogram[STAGE_COUNT];
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			stages[i] = new LatencyHistogram(NAMES[i]);
+		}
+		bytes = new LatencyHistogram("bytes");
+	}
+
+	@Override
+	public void stage(int stage, long nanos) {
+		stages[stage].record(nanos);
+	}
+
+	@Override
+	public void written(int size) {
+		bytes.record(size);
+	}
+
+	/**
+	 *	Returns the latency histogram in nanoseconds of EncoderMetrics.STAGE_*.
+	 */
+	@NonNull
+	public LatencyHistogram getStage(int stage) {
+		return stages[stage];
+	}
+
+	/**
+	 *	Returns the histogram of bytes written per frame.
+	 */
+	@NonNull
+	public LatencyHistogram getBytes() {
+		return bytes;
+	}
+
+	public void reset() {
+		for (LatencyHistogram h : stages) {
+			h.reset();
+		}
+		bytes.reset();
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (LatencyHistogram h : stages) {
+			sb.append(h.summary(1000000)).append(" msec\n");
+		}
+		sb.append(bytes.summary(1)).append(" bytes");
+		return sb.toString();
+	}
+}
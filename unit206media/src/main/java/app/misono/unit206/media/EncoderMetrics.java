@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.AnyThread;
+
+/**
+ *	Receives per-frame measurements of the encode pipeline.
+ *	It is called from the converter and the encoder threads, so implementations must be thread-safe and cheap.
+ */
+public interface EncoderMetrics {
+	/** Bitmap to YUV conversion in Mp4Encoder. */
+	int STAGE_CONVERT = 0;
+	/** Wait in the MediaEncoder mailbox. */
+	int STAGE_QUEUE = 1;
+	/** Wait in MediaCodec.dequeueInputBuffer(). */
+	int STAGE_DEQUEUE_INPUT = 2;
+	/** From queueInputBuffer() until the output buffer with the same presentation time. */
+	int STAGE_CODEC = 3;
+	/** MediaMuxer.writeSampleData(). */
+	int STAGE_WRITE = 4;
+	int STAGE_COUNT = 5;
+
+	@AnyThread
+	void stage(int stage, long nanos);
+
+	@AnyThread
+	void written(int bytes);
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	{@link TimerScheduler} on a single thread <tt>ScheduledThreadPoolExecutor</tt>.
+ *	It does not depend on the Android framework, it backs {@link JasaTimer#getInstance()} on Android and on a plain JVM.
+ */
+public final class ExecutorTimerScheduler implements TimerScheduler {
+	private final ScheduledThreadPoolExecutor executor;
+	private final List<Delayed> aDelayed;
+
+	private Target target;
+
+	public ExecutorTimerScheduler(String name) {
+		executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread th = new Thread(r, name);
+			th.setDaemon(true);
+			return th;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		aDelayed = new ArrayList<>();
+	}
+
+	@Override
+	public void start(Target target) {
+		this.target = target;
+	}
+
+	@Override
+	public long uptimeMillis() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	@Override
+	public void send(int what, Object obj) {
+		try {
+			executor.execute(() -> target.handleMessage(what, obj));
+		} catch (RejectedExecutionException e) {
+			// already closed
+		}
+	}
+
+	@Override
+	public void sendAtTime(int what, long uptimeMillis) {
+		Delayed d = new Delayed(what);
+		synchronized (aDelayed) {
+			aDelayed.add(d);
+		}
+		try {
+			d.future = executor.schedule(d, Math.max(0, uptimeMillis - uptimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// already closed
+		}
+	}
+
+	@Override
+	public void remove(int what) {
+		synchronized (aDelayed) {
+			for (int i = 0; i < aDelayed.size(); ) {
+				Delayed d = aDelayed.get(i);
+				if (d.what == what) {
+					ScheduledFuture<?> future = d.future;
+					if (future != null) {
+						future.cancel(false);
+					}
+					aDelayed.remove(i);
+					continue;
+				}
+				i++;
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (aDelayed) {
+			aDelayed.clear();
+		}
+		executor.shutdown();
+	}
+
+	private final class Delayed implements Runnable {
+		private final int what;
+
+		private volatile ScheduledFuture<?> future;
+
+		private Delayed(int what) {
+			this.what = what;
+		}
+
+		@Override
+		public void run() {
+			synchronized (aDelayed) {
+				if (!aDelayed.remove(this)) return;			// removed while waiting
+			}
+			target.handleMessage(what, null);
+		}
+	}
+}
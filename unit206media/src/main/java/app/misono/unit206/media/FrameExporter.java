@@ -0,0 +1,301 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ *	Exports decoded frames as an image sequence. Frames are compressed by a worker pool
+ *	and written into files or a stream, the pending frames are bounded by the BitmapPool of the decoder.
+ *
+ *	<pre>
+ *	FrameExporter exporter = FrameExporter.toFiles(dir, "frame%06d.jpg", Bitmap.CompressFormat.JPEG, 90, 4);
+ *	decoder.setOnDecodedFrame(exporter, 8);
+ *	Tasks.await(decoder.startTask(null));
+ *	exporter.finish();
+ *	</pre>
+ */
+public final class FrameExporter implements MovieDecoder.OnDecodedFrame, Closeable {
+	private final ThreadLocal<ByteArrayOutputStream> buffers;
+	private final Bitmap.CompressFormat format;
+	private final ExecutorService executor;
+	private final Set<Integer> skipped;
+	private final OutputStream os;
+	private final String pattern;
+	private final Object lock;
+	private final File dir;
+	private final int quality;
+
+	private IOException exception;
+	private boolean stopped, closed;
+	private int next, nextWrite, pending;
+
+	private FrameExporter(
+		File dir,
+		String pattern,
+		OutputStream os,
+		Bitmap.CompressFormat format,
+		int quality,
+		int threads
+	) {
+		this.dir = dir;
+		this.pattern = pattern;
+		this.os = os;
+		this.format = format;
+		this.quality = quality;
+		lock = new Object();
+		buffers = new ThreadLocal<>();
+		skipped = new HashSet<>();
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 *	Writes each frame into a file in <tt>dir</tt>, named by String.format(pattern, frameIndex).
+	 */
+	@NonNull
+	public static FrameExporter toFiles(
+		@NonNull File dir,
+		@NonNull String pattern,
+		@NonNull Bitmap.CompressFormat format,
+		int quality,
+		int threads
+	) {
+		return new FrameExporter(dir, pattern, null, format, quality, threads);
+	}
+
+	/**
+	 *	Writes the compressed frames into <tt>os</tt> one after another in decoded order.
+	 *	The stream is not closed.
+	 */
+	@NonNull
+	public static FrameExporter toStream(
+		@NonNull OutputStream os,
+		@NonNull Bitmap.CompressFormat format,
+		int quality,
+		int threads
+	) {
+		return new FrameExporter(null, null, os, format, quality, threads);
+	}
+
+	/**
+	 *	Frames given after {@link #finish()} or {@link #close()} are not exported.
+	 */
+	@Override
+	@WorkerThread
+	public void decoded(@NonNull BitmapPool.PooledBitmap frame, long usec) {
+		ExportTask task;
+		synchronized (lock) {
+			if (stopped) return;
+
+			task = new ExportTask(next++, frame);
+			pending++;
+		}
+		frame.retain();
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.abandon();
+		}
+	}
+
+	private final class ExportTask implements Runnable {
+		private final BitmapPool.PooledBitmap frame;
+		private final int index;
+
+		private ExportTask(int index, BitmapPool.PooledBitmap frame) {
+			this.index = index;
+			this.frame = frame;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (os != null) {
+					writeOrdered(index, frame.getBitmap());
+				} else {
+					writeFile(index, frame.getBitmap());
+				}
+			} catch (IOException e) {
+				setException(e);
+			} finally {
+				done();
+			}
+		}
+
+		/**
+		 *	Gives up the frame which is never run, the ordered writers skip its index.
+		 */
+		private void abandon() {
+			skip(index);
+			done();
+		}
+
+		private void done() {
+			frame.release();
+			synchronized (lock) {
+				pending--;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private void writeFile(int index, Bitmap bitmap) throws IOException {
+		File file = new File(dir, String.format(Locale.US, pattern, index));
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			compress(bitmap, out);
+		}
+	}
+
+	/**
+	 *	Compresses in parallel, then writes in the order of index. The index is passed to the next frame
+	 *	after this frame is written or abandoned, never before.
+	 */
+	private void writeOrdered(int index, Bitmap bitmap) throws IOException {
+		boolean turn = false;
+		try {
+			ByteArrayOutputStream buf = buffers.get();
+			if (buf == null) {
+				buf = new ByteArrayOutputStream(bitmap.getByteCount() / 8);
+				buffers.set(buf);
+			}
+			buf.reset();
+			compress(bitmap, buf);
+			synchronized (lock) {
+				while (nextWrite != index) {
+					if (closed) {
+						throw new IOException("FrameExporter is already closed...");
+					}
+					lock.wait();
+				}
+				turn = true;
+				try {
+					buf.writeTo(os);
+				} finally {
+					advance();
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted at frame " + index);
+		} finally {
+			if (!turn) {
+				skip(index);
+			}
+		}
+	}
+
+	private void compress(Bitmap bitmap, OutputStream out) throws IOException {
+		if (!bitmap.compress(format, quality, out)) {
+			throw new IOException("Bitmap.compress() failed:" + format);
+		}
+	}
+
+	/**
+	 *	Marks the index abandoned, it is passed when its turn comes.
+	 */
+	private void skip(int index) {
+		synchronized (lock) {
+			if (index == nextWrite) {
+				advance();
+			} else {
+				skipped.add(index);
+			}
+		}
+	}
+
+	private void advance() {
+		nextWrite++;
+		while (skipped.remove(nextWrite)) {
+			nextWrite++;
+		}
+		lock.notifyAll();
+	}
+
+	private void setException(IOException e) {
+		synchronized (lock) {
+			if (exception == null) {
+				exception = e;
+			}
+		}
+	}
+
+	/**
+	 *	Returns the number of frames exported or being exported.
+	 */
+	public int getCount() {
+		synchronized (lock) {
+			return next;
+		}
+	}
+
+	/**
+	 *	Waits until every frame is written, then stops the workers.
+	 *
+	 *	@throws IOException	the first error while writing the frames.
+	 */
+	public void finish() throws IOException, InterruptedException {
+		synchronized (lock) {
+			stopped = true;
+			while (pending != 0) {
+				lock.wait();
+			}
+		}
+		executor.shutdown();
+		if (os != null) {
+			os.flush();
+		}
+		synchronized (lock) {
+			if (exception != null) {
+				throw exception;
+			}
+		}
+	}
+
+	/**
+	 *	Stops the workers without waiting for the pending frames. The frames not exported are released to their pool.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			stopped = true;
+			closed = true;
+			lock.notifyAll();
+		}
+		List<Runnable> drained = executor.shutdownNow();
+		for (Runnable r : drained) {
+			((ExportTask)r).abandon();
+		}
+	}
+}
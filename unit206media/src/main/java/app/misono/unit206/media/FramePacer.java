@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ *	Paces frames to their presentation time on the monotonic clock, and drops frames which are already late.
+ */
+public final class FramePacer {
+	private static final long NANO_LATE = 40 * 1000000L;		// late frames beyond this are dropped
+	private static final int MAX_DROPS = 8;						// presents a frame after this many drops in a row
+
+	private final LatencyHistogram jitter;
+
+	private long nanoBase, usecBase, usecLast, nanoLate;
+	private double rate;
+	private int drops;
+	private volatile long presented, dropped;
+
+	public FramePacer() {
+		jitter = new LatencyHistogram("jitter");
+		nanoLate = NANO_LATE;
+		rate = 1.0;
+	}
+
+	/**
+	 *	Sets the playback rate multiplier, e.g. 2.0 plays twice as fast. The clock is re-based at the next frame.
+	 */
+	public synchronized void setRate(double rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("rate must be positive:" + rate);
+		}
+		this.rate = rate;
+		nanoBase = 0;
+	}
+
+	/**
+	 *	Sets how late a frame can be before it is dropped.
+	 */
+	public synchronized void setLateThreshold(int msec) {
+		nanoLate = msec * 1000000L;
+	}
+
+	/**
+	 *	Restarts the clock at the next frame.
+	 */
+	public synchronized void reset() {
+		nanoBase = 0;
+		drops = 0;
+	}
+
+	/**
+	 *	Waits until the presentation time of the frame.
+	 *
+	 *	@return false if the frame is late and should be dropped.
+	 */
+	@WorkerThread
+	public boolean await(long usecPts) throws InterruptedException {
+		long nanoDue;
+		long nanoLate;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (nanoBase == 0 || usecPts < usecLast) {
+				//	first frame, rate changed or looped
+				nanoBase = now;
+				usecBase = usecPts;
+			}
+			usecLast = usecPts;
+			nanoDue = nanoBase + (long)((usecPts - usecBase) * 1000 / rate);
+			nanoLate = this.nanoLate;
+		}
+		long now = System.nanoTime();
+		long wait = nanoDue - now;
+		if (0 < wait) {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			now = System.nanoTime();
+		} else if (nanoLate < -wait && drops < MAX_DROPS) {
+			drops++;
+			dropped++;
+			return false;
+		}
+		drops = 0;
+		presented++;
+		jitter.record(now - nanoDue);
+		return true;
+	}
+
+	public long getPresented() {
+		return presented;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 *	Returns the histogram of how late presented frames are, in nanoseconds.
+	 */
+	@NonNull
+	public LatencyHistogram getJitter() {
+		return jitter;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.misono.unit206.media;
+
+import android.opengl.GLES10;
+import android.opengl.GLES20;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ *	GLES 2.0 helpers shared by the renderers drawing an external texture onto a quad.
+ */
+final class GlUtil {
+	/**
+	 *	Transforms the quad by uMVPMatrix and the texture coordinates by uSTMatrix of SurfaceTexture.
+	 */
+	static final String VERTEX_SHADER =
+		"uniform mat4 uMVPMatrix;\n"							+
+		"uniform mat4 uSTMatrix;\n"								+
+		"attribute vec4 aPosition;\n"							+
+		"attribute vec4 aTextureCoord;\n"						+
+		"varying vec2 vTextureCoord;\n"							+
+		"void main() {\n"										+
+		" gl_Position = uMVPMatrix * aPosition;\n"				+
+		" vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n"	+
+		"}\n";
+
+	private static final int FLOAT_SIZE_BYTES = 4;
+	private static final int QUAD_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
+	private static final int QUAD_POS_OFFSET = 0;
+	private static final int QUAD_UV_OFFSET = 3;
+	private static final float[] QUAD = {
+		// X, Y, Z, U, V
+		-1.0f, -1.0f, 0, 0.f, 0.f,
+		 1.0f, -1.0f, 0, 1.f, 0.f,
+		-1.0f,  1.0f, 0, 0.f, 1.f,
+		 1.0f,  1.0f, 0, 1.f, 1.f,
+	};
+
+	private GlUtil() {
+	}
+
+	/**
+	 *	@return the vertices of a full viewport quad as a triangle strip for {@link #bindQuad}
+	 */
+	static FloatBuffer newQuad() {
+		FloatBuffer quad = ByteBuffer.allocateDirect(QUAD.length * FLOAT_SIZE_BYTES)
+			.order(ByteOrder.nativeOrder())
+			.asFloatBuffer();
+		quad.put(QUAD).position(0);
+		return quad;
+	}
+
+	/**
+	 *	Points the position and texture coordinate attributes at <tt>quad</tt>.
+	 */
+	static void bindQuad(FloatBuffer quad, int aPositionHandle, int aTextureHandle) {
+		quad.position(QUAD_POS_OFFSET);
+		GLES20.glVertexAttribPointer(aPositionHandle, 3, GLES10.GL_FLOAT, false, QUAD_STRIDE_BYTES, quad);
+		checkGlError("glVertexAttribPointer aPosition");
+		GLES20.glEnableVertexAttribArray(aPositionHandle);
+		checkGlError("glEnableVertexAttribArray aPosition");
+		quad.position(QUAD_UV_OFFSET);
+		GLES20.glVertexAttribPointer(aTextureHandle, 2, GLES10.GL_FLOAT, false, QUAD_STRIDE_BYTES, quad);
+		checkGlError("glVertexAttribPointer aTextureCoord");
+		GLES20.glEnableVertexAttribArray(aTextureHandle);
+		checkGlError("glEnableVertexAttribArray aTextureCoord");
+	}
+
+	/**
+	 *	@return 0 if the shader does not compile
+	 */
+	static int loadShader(int shaderType, String source) {
+		int shader = GLES20.glCreateShader(shaderType);
+		checkGlError("glCreateShader type=" + shaderType);
+
+		GLES20.glShaderSource(shader, source);
+		GLES20.glCompileShader(shader);
+		int[] compiled = new int[1];
+		GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+		if (compiled[0] == 0) {
+			GLES20.glDeleteShader(shader);
+			shader = 0;
+		}
+		return shader;
+	}
+
+	/**
+	 *	@return 0 if the program does not link
+	 */
+	static int linkProgram(int vertexShader, int pixelShader) {
+		int program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, vertexShader);
+		checkGlError("glAttachShader");
+		GLES20.glAttachShader(program, pixelShader);
+		checkGlError("glAttachShader");
+		GLES20.glLinkProgram(program);
+		int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] != GLES10.GL_TRUE) {
+			GLES20.glDeleteProgram(program);
+			program = 0;
+		}
+		return program;
+	}
+
+	/**
+	 *	Compiles and links a program owning its shaders, they are deleted with it.
+	 *
+	 *	@return 0 if it fails
+	 */
+	static int createProgram(String vertexSource, String fragmentSource) {
+		int program = 0;
+		int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+		if (vertexShader != 0) {
+			int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+			if (pixelShader != 0) {
+				program = linkProgram(vertexShader, pixelShader);
+				GLES20.glDeleteShader(pixelShader);
+			}
+			GLES20.glDeleteShader(vertexShader);
+		}
+		return program;
+	}
+
+	static void checkGlError(String op) {
+		int error = GLES10.glGetError();
+		if (error != GLES10.GL_NO_ERROR) {
+			throw new RuntimeException(op + ": glError " + error);
+		}
+	}
+
+	static void checkLocation(int location, String label) {
+		if (location < 0) {
+			throw new RuntimeException("Unable to locate '" + label + "' in program");
+		}
+	}
+}
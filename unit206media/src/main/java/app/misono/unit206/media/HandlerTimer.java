@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.misono.unit206.media;
+
+import android.os.Handler;
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The <a href='http://developer.android.com/reference/android/os/Handler.html'><tt>Handler</tt></a> class based timers on a {@link JasaTimer}.
+ * The Android framework is used here, JasaTimer only keeps deprecated delegates to it and runs on a plain JVM.
+ */
+public final class HandlerTimer {
+	private static HandlerTimer me;
+
+	private final JasaTimer timer;
+
+	public HandlerTimer(@NonNull JasaTimer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Returns the instance on {@link JasaTimer#getInstance()}.
+	 */
+	public static synchronized HandlerTimer getInstance() {
+		if (me == null || me.timer != JasaTimer.getInstance()) me = new HandlerTimer(JasaTimer.getInstance());
+
+		return me;
+	}
+
+	/**
+	 * Enqueue a message into the message queue after all pending messages before (current time + <tt>msec</tt>).
+	 * You will receive it in <a href='http://developer.android.com/reference/android/os/Handler.html#handleMessage(android.os.Message)'><tt>handleMessage(Message)</tt></a>, in the thread attached to the <tt>aHandler</tt> handler.
+	 */
+	public void start(int msec, Handler aHandler, int what) {
+		start(msec, aHandler, what, null);
+	}
+
+	/**
+	 * Enqueue a message into the message queue after all pending messages before (current time + <tt>msec</tt>).
+	 * You will receive it in <a href='http://developer.android.com/reference/android/os/Handler.html#handleMessage(android.os.Message)'><tt>handleMessage(Message)</tt></a>, in the thread attached to the <tt>aHandler</tt> handler.
+	 */
+	public void start(int msec, Handler aHandler, int what, Object obj) {
+		timer.start(msec, aHandler, what, o -> Message.obtain(aHandler, what, o).sendToTarget(), obj);
+	}
+
+	/**
+	 * Remove any pending timers with code 'what'. 
+	 */
+	public void stop(Handler aHandler, int what) {
+		timer.stop((Object)aHandler, what, null);
+	}
+
+	/**
+	 * Remove any pending timers with code 'what' and 'obj'. 
+	 */
+	public void stop(Handler aHandler, int what, Object obj) {
+		timer.stop((Object)aHandler, what, obj);
+	}
+
+	/**
+	 * Remove any pending timers. 
+	 */
+	public void stop(Handler aHandler) {
+		timer.stop((Object)aHandler);
+	}
+}
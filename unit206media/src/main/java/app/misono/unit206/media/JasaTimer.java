@@ -16,217 +16,285 @@
 
 package app.misono.unit206.media;
 
-import android.annotation.SuppressLint;
-import android.os.ConditionVariable;
 import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.os.SystemClock;
 
 import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * The <tt>JasaTimer</tt> class provides the <a href='http://developer.android.com/reference/android/os/Handler.html'><tt>Handler</tt></a> class based timers.
+ * The <tt>JasaTimer</tt> class provides the callback based timers without the Android framework,
+ * see {@link HandlerTimer} for the <a href='http://developer.android.com/reference/android/os/Handler.html'><tt>Handler</tt></a> class based timers.
+ * The timer thread is provided by a {@link TimerScheduler}.
+ * The deprecated <tt>Handler</tt> methods only delegate to {@link HandlerTimer}, the rest runs on a plain JVM.
  * This is "tì’eylan aEywa".
  */
 public final class JasaTimer implements Closeable {
+	private static final String TAG = "JasaTimer";
 	private static final int MSG_ADD_TIMER = 0;
 	private static final int MSG_REMOVE_TIMER = 1;
 	private static final int MSG_TIMEOUT = 2;
-	private static final int MSG_REMOVE_HANDLER = 3;
+	private static final int MSG_REMOVE_OWNER = 3;
 	private static final int MSG_FINISH = 4;
+	private static final int MSG_ADD_HANDLE = 5;
+	private static final int MSG_CHECK_HANDLE = 6;
 
 	private static JasaTimer me;
 
-	private ConditionVariable signal;
-	private List<TimerTuple> aList;
+	private final TimerScheduler scheduler;
+	private final List<TimerTuple> aList;
+	private final List<TimerHandle> aHandle;
+
 	private TimerTuple active;
-	private Handler handler;
+	private volatile boolean closed;
 
-	private JasaTimer() {
+	private JasaTimer(TimerScheduler scheduler) {
+		this.scheduler = scheduler;
 		aList = new ArrayList<>();
-		signal = new ConditionVariable();
-		new Thread("JasaTimer") {
-			@SuppressLint("HandlerLeak")
-			@Override
-			public void run() {
-				Looper.prepare();
-				handler = new Handler(Looper.myLooper()) {
-					@Override
-					public void handleMessage(Message msg) {
-						TimerTuple tt, t;
-						switch (msg.what) {
-						case MSG_ADD_TIMER:
-							tt = (TimerTuple)msg.obj;
-							aList.add(tt);
-							if (active == null || tt.timeout < active.timeout) {
-								handler.removeMessages(MSG_TIMEOUT);
-								active = tt;
-								handler.sendEmptyMessageAtTime(MSG_TIMEOUT, tt.timeout);
-							}
-							break;
-						case MSG_REMOVE_TIMER:
-							tt = (TimerTuple)msg.obj;
-							if (tt == active) {
-								handler.removeMessages(MSG_TIMEOUT);
-								active = null;
-							}
-							for (int i = 0; i < aList.size(); ) {
-								t = aList.get(i);
-								if (t.handler == tt.handler && t.what == tt.what && t.obj == tt.obj) {
-									aList.remove(i);
-									continue;
-								}
-								i++;
-							}
-							if (active == null) {
-								nextTimerStart();
-							}
-							break;
-						case MSG_REMOVE_HANDLER:
-							Handler h = (Handler)msg.obj;
-							if (h == active.handler) {
-								handler.removeMessages(MSG_TIMEOUT);
-								active = null;
-							}
-							for (int i = 0; i < aList.size(); ) {
-								t = aList.get(i);
-								if (t.handler == h) {
-									aList.remove(i);
-									continue;
-								}
-								i++;
-							}
-							if (active == null) {
-								nextTimerStart();
-							}
-							break;
-						case MSG_TIMEOUT:
-							long now = SystemClock.uptimeMillis();
-							for (int i = 0; i < aList.size(); ) {
-								t = aList.get(i);
-								if (t.timeout <= now) {
-									if (t.handler != null) {
-										Message.obtain(t.handler, t.what, t.obj).sendToTarget();
-									} else if (t.callback != null) {
-										t.callback.timeout(t.obj);
-									}
-									aList.remove(i);
-									continue;
-								}
-								i++;
-							}
-							nextTimerStart();
-							break;
-						case MSG_FINISH:
-							getLooper().quit();
-							break;
-						}
-					}
-				};
-				signal.open();
-				Looper.loop();
-				signal = null;
-				aList = null;
-			}
+		aHandle = new ArrayList<>();
+		scheduler.start(this::handleMessage);
+	}
 
-			private void nextTimerStart() {
+	/**
+	 * Called in the timer thread.
+	 */
+	private void handleMessage(int what, Object obj) {
+		TimerTuple tt, t;
+		switch (what) {
+		case MSG_ADD_TIMER:
+			tt = (TimerTuple)obj;
+			aList.add(tt);
+			scheduler.remove(MSG_TIMEOUT);
+			nextTimerStart();
+			break;
+		case MSG_REMOVE_TIMER:
+			tt = (TimerTuple)obj;
+			if (tt == active) {
 				active = null;
-				int n = aList.size();
-				for (int i = 0; i < n; i++) {
-					TimerTuple t = aList.get(i);
-					if (active == null || t.timeout < active.timeout) {
-						active = t;
-					}
+			}
+			for (int i = 0; i < aList.size(); ) {
+				t = aList.get(i);
+				if (t.owner == tt.owner && t.what == tt.what && t.obj == tt.obj) {
+					aList.remove(i);
+					continue;
 				}
-				if (active != null) {
-					handler.sendEmptyMessageAtTime(MSG_TIMEOUT, active.timeout);
+				i++;
+			}
+			if (active == null) {
+				scheduler.remove(MSG_TIMEOUT);
+				nextTimerStart();
+			}
+			break;
+		case MSG_REMOVE_OWNER:
+			if (active != null && obj == active.owner) {
+				active = null;
+			}
+			for (int i = 0; i < aList.size(); ) {
+				t = aList.get(i);
+				if (t.owner == obj) {
+					aList.remove(i);
+					continue;
 				}
+				i++;
+			}
+			if (active == null) {
+				scheduler.remove(MSG_TIMEOUT);
+				nextTimerStart();
+			}
+			break;
+		case MSG_ADD_HANDLE:
+			TimerHandle th = (TimerHandle)obj;
+			th.add();
+			aHandle.add(th);
+			scheduler.remove(MSG_TIMEOUT);
+			nextTimerStart();
+			break;
+		case MSG_CHECK_HANDLE:
+			scheduler.remove(MSG_TIMEOUT);
+			nextTimerStart();
+			break;
+		case MSG_TIMEOUT:
+			scheduler.beginDispatch();
+			try {
+				timeout();
+			} finally {
+				scheduler.endDispatch();
 			}
-		}.start();
-		signal.block();
+			break;
+		case MSG_FINISH:
+			aList.clear();
+			aHandle.clear();
+			active = null;
+			scheduler.close();
+			break;
+		}
+	}
+
+	/**
+	 * Dispatches the expired timers and handles, called in the timer thread.
+	 */
+	private void timeout() {
+		long now = scheduler.uptimeMillis();
+		for (int i = 0; i < aList.size(); ) {
+			TimerTuple t = aList.get(i);
+			if (t.timeout <= now) {
+				aList.remove(i);
+				dispatch(t.callback, t.obj);
+				continue;
+			}
+			i++;
+		}
+		for (int i = 0; i < aHandle.size(); ) {
+			if (!aHandle.get(i).check(now)) {
+				aHandle.remove(i);
+				continue;
+			}
+			i++;
+		}
+		scheduler.remove(MSG_TIMEOUT);
+		nextTimerStart();
 	}
 
 	/**
-	 * Returns the instance of <tt>JasaTimer</tt>.
+	 * A throwing callback must not stop the dispatch, the following timers would never fire.
+	 * java.util.logging goes to logcat on Android and keeps this class free of the Android framework.
 	 */
-	public static JasaTimer getInstance() {
-		if (me == null) me = new JasaTimer();
+	private static void dispatch(Callback callback, Object obj) {
+		try {
+			callback.timeout(obj);
+		} catch (RuntimeException e) {
+			Logger.getLogger(TAG).log(Level.WARNING, "timeout callback failed:", e);
+		}
+	}
+
+	private void nextTimerStart() {
+		active = null;
+		int n = aList.size();
+		for (int i = 0; i < n; i++) {
+			TimerTuple t = aList.get(i);
+			if (active == null || t.timeout < active.timeout) {
+				active = t;
+			}
+		}
+		long timeout = active != null ? active.timeout : Long.MAX_VALUE;
+		n = aHandle.size();
+		for (int i = 0; i < n; i++) {
+			timeout = Math.min(timeout, aHandle.get(i).checkAt);
+		}
+		if (timeout != Long.MAX_VALUE) {
+			scheduler.sendAtTime(MSG_TIMEOUT, timeout);
+		}
+	}
+
+	/**
+	 * Returns the instance of <tt>JasaTimer</tt>, which runs on an {@link ExecutorTimerScheduler}
+	 * on Android and on a plain JVM alike.
+	 */
+	public static synchronized JasaTimer getInstance() {
+		if (me == null) me = new JasaTimer(new ExecutorTimerScheduler("JasaTimer"));
 
 		return me;
 	}
 
-	public static JasaTimer getMe() {
+	/**
+	 * Creates a new <tt>JasaTimer</tt> which runs on the given scheduler, independent of {@link #getInstance()}.
+	 * Use {@link ExecutorTimerScheduler} to run it off-device.
+	 */
+	public static JasaTimer create(TimerScheduler scheduler) {
+		return new JasaTimer(scheduler);
+	}
+
+	public static synchronized JasaTimer getMe() {
 		return me;
 	}
 
+	/**
+	 * Calls <tt>callback</tt> with <tt>obj</tt> in the timer thread after (current time + <tt>msec</tt>).
+	 */
+	public void start(int msec, Callback callback, Object obj) {
+		start(msec, callback, 0, callback, obj);
+	}
+
 	/**
 	 * Enqueue a message into the message queue after all pending messages before (current time + <tt>msec</tt>).
-	 * You will receive it in <a href='http://developer.android.com/reference/android/os/Handler.html#handleMessage(android.os.Message)'><tt>handleMessage(Message)</tt></a>, in the thread attached to the <tt>aHandler</tt> handler.
+	 *
+	 * @deprecated use {@link HandlerTimer#start(int, Handler, int)}
 	 */
+	@Deprecated
 	public void start(int msec, Handler aHandler, int what) {
-		Handler h = handler;
-		if (h != null) {
-			TimerTuple t = new TimerTuple(aHandler, SystemClock.uptimeMillis() + msec, what, null);
-			Message.obtain(h, MSG_ADD_TIMER, t).sendToTarget();
-		}
+		new HandlerTimer(this).start(msec, aHandler, what);
 	}
 
 	/**
 	 * Enqueue a message into the message queue after all pending messages before (current time + <tt>msec</tt>).
-	 * You will receive it in <a href='http://developer.android.com/reference/android/os/Handler.html#handleMessage(android.os.Message)'><tt>handleMessage(Message)</tt></a>, in the thread attached to the <tt>aHandler</tt> handler.
+	 *
+	 * @deprecated use {@link HandlerTimer#start(int, Handler, int, Object)}
 	 */
+	@Deprecated
 	public void start(int msec, Handler aHandler, int what, Object obj) {
-		Handler h = handler;
-		if (h != null) {
-			TimerTuple t = new TimerTuple(aHandler, SystemClock.uptimeMillis() + msec, what, obj);
-			Message.obtain(h, MSG_ADD_TIMER, t).sendToTarget();
-		}
+		new HandlerTimer(this).start(msec, aHandler, what, obj);
 	}
 
 	/**
-	 * Enqueue a message into the message queue after all pending messages before (current time + <tt>msec</tt>).
-	 * You will receive it in <a href='http://developer.android.com/reference/android/os/Handler.html#handleMessage(android.os.Message)'><tt>handleMessage(Message)</tt></a>, in the thread attached to the <tt>aHandler</tt> handler.
+	 * Remove any pending timers with code 'what'.
+	 *
+	 * @deprecated use {@link HandlerTimer#stop(Handler, int)}
 	 */
-	public void start(int msec, Callback callback, Object obj) {
-		Handler h = handler;
-		if (h != null) {
-			TimerTuple t = new TimerTuple(callback, SystemClock.uptimeMillis() + msec, obj);
-			Message.obtain(h, MSG_ADD_TIMER, t).sendToTarget();
-		}
+	@Deprecated
+	public void stop(Handler aHandler, int what) {
+		new HandlerTimer(this).stop(aHandler, what);
 	}
 
 	/**
-	 * Remove any pending timers with code 'what'. 
+	 * Remove any pending timers with code 'what' and 'obj'.
+	 *
+	 * @deprecated use {@link HandlerTimer#stop(Handler, int, Object)}
 	 */
-	public void stop(Handler aHandler, int what) {
-		Handler h = handler;
-		if (h != null) {
-			TimerTuple t = new TimerTuple(aHandler, 0, what, null);
-			Message.obtain(h, MSG_REMOVE_TIMER, t).sendToTarget();
+	@Deprecated
+	public void stop(Handler aHandler, int what, Object obj) {
+		new HandlerTimer(this).stop(aHandler, what, obj);
+	}
+
+	/**
+	 * Remove any pending timers.
+	 *
+	 * @deprecated use {@link HandlerTimer#stop(Handler)}
+	 */
+	@Deprecated
+	public void stop(Handler aHandler) {
+		new HandlerTimer(this).stop(aHandler);
+	}
+
+	/**
+	 * Starts a timer which is removed by <tt>owner</tt>, <tt>what</tt> and <tt>obj</tt>, see {@link HandlerTimer}.
+	 */
+	void start(int msec, Object owner, int what, Callback callback, Object obj) {
+		if (!closed) {
+			TimerTuple t = new TimerTuple(owner, scheduler.uptimeMillis() + msec, what, callback, obj);
+			scheduler.send(MSG_ADD_TIMER, t);
 		}
 	}
 
 	/**
-	 * Remove any pending timers with code 'what' and 'obj'. 
+	 * Removes any pending timers of <tt>owner</tt> with code 'what' and 'obj'.
 	 */
-	public void stop(Handler aHandler, int what, Object obj) {
-		Handler h = handler;
-		if (h != null) {
-			TimerTuple t = new TimerTuple(aHandler, 0, what, obj);
-			Message.obtain(h, MSG_REMOVE_TIMER, t).sendToTarget();
+	void stop(Object owner, int what, Object obj) {
+		if (!closed) {
+			TimerTuple t = new TimerTuple(owner, 0, what, null, obj);
+			scheduler.send(MSG_REMOVE_TIMER, t);
 		}
 	}
 
 	/**
-	 * Remove any pending timers. 
+	 * Removes any pending timers of <tt>owner</tt>.
 	 */
-	public void stop(Handler aHandler) {
-		Handler h = handler;
-		if (h != null) {
-			Message.obtain(h, MSG_REMOVE_HANDLER, aHandler).sendToTarget();
+	void stop(Object owner) {
+		if (!closed) {
+			scheduler.send(MSG_REMOVE_OWNER, owner);
 		}
 	}
 
@@ -234,33 +302,108 @@ public final class JasaTimer implements Closeable {
 	 * Remove any pending timers with code 'callback' and 'obj'. 
 	 */
 	public void stop(Callback callback, Object obj) {
-		Handler h = handler;
-		if (h != null) {
-			TimerTuple t = new TimerTuple(callback, 0, obj);
-			Message.obtain(h, MSG_REMOVE_TIMER, t).sendToTarget();
+		stop(callback, 0, obj);
+	}
+
+	/**
+	 * Creates a re-armable timer which calls <tt>callback</tt> with <tt>obj</tt> when it expires.
+	 * The returned handle can be re-scheduled from any thread without allocation.
+	 */
+	public TimerHandle createHandle(Callback callback, Object obj) {
+		return new TimerHandle(callback, obj);
+	}
+
+	/**
+	 * A re-armable timer created by {@link #createHandle(Callback, Object)}.
+	 * {@link #reschedule(int)} only updates a volatile deadline, the timer thread checks it lazily
+	 * when the previously scheduled time comes.
+	 */
+	public final class TimerHandle {
+		private final AtomicBoolean armed;
+		private final AtomicLong deadline;			// 0: not scheduled
+		private final Callback callback;
+		private final Object obj;
+
+		private volatile long checkAt;				// written by the timer thread only
+
+		private TimerHandle(Callback callback, Object obj) {
+			this.callback = callback;
+			this.obj = obj;
+			armed = new AtomicBoolean();
+			deadline = new AtomicLong();
+			checkAt = Long.MAX_VALUE;
+		}
+
+		/**
+		 * Expires after (current time + <tt>msec</tt>), replacing the previous deadline.
+		 */
+		public void reschedule(int msec) {
+			long timeout = scheduler.uptimeMillis() + msec;
+			deadline.set(timeout);
+			if (!closed) {
+				if (armed.compareAndSet(false, true)) {
+					scheduler.send(MSG_ADD_HANDLE, this);
+				} else if (timeout < checkAt) {
+					scheduler.send(MSG_CHECK_HANDLE, null);
+				}
+			}
+		}
+
+		/**
+		 * Cancels the pending deadline. The timer thread forgets this handle lazily.
+		 */
+		public void cancel() {
+			deadline.set(0);
+		}
+
+		/**
+		 * Called in the timer thread.
+		 *
+		 * @return false if this handle should be removed from the timer thread.
+		 */
+		private boolean check(long now) {
+			long timeout = deadline.get();
+			if (timeout != 0 && now < timeout) {
+				checkAt = timeout;
+				return true;
+			}
+			if (timeout != 0 && deadline.compareAndSet(timeout, 0)) {
+				dispatch(callback, obj);
+			}
+			checkAt = Long.MAX_VALUE;
+			armed.set(false);
+			timeout = deadline.get();
+			if (timeout != 0 && armed.compareAndSet(false, true)) {
+				//	re-scheduled by another thread while disarming.
+				checkAt = timeout;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Called in the timer thread when this handle is armed.
+		 */
+		private void add() {
+			long timeout = deadline.get();
+			checkAt = timeout != 0 ? timeout : scheduler.uptimeMillis();
 		}
 	}
 
 	//	TODO
 	//	RunnableTimer extends Runnable
 	private static class TimerTuple {
+		private final Callback callback;
+		private final Object owner;
 		private final Object obj;
 		private final long timeout;
+		private final int what;
 
-		private Callback callback;
-		private Handler handler;
-		private int what;
-
-		private TimerTuple(Handler aHandler, long timeout, int what, Object obj) {
-			this.handler = aHandler;
+		private TimerTuple(Object owner, long timeout, int what, Callback callback, Object obj) {
+			this.owner = owner;
 			this.timeout = timeout;
 			this.what = what;
-			this.obj = obj;
-		}
-
-		private TimerTuple(Callback callback, long timeout, Object obj) {
 			this.callback = callback;
-			this.timeout = timeout;
 			this.obj = obj;
 		}
 	}
@@ -272,11 +415,14 @@ public final class JasaTimer implements Closeable {
 
 	@Override
 	public synchronized void close() {
-		Handler h = handler;
-		if (h != null) {
-			handler = null;
-			me = null;
-			h.sendEmptyMessage(MSG_FINISH);
+		if (!closed) {
+			closed = true;
+			synchronized (JasaTimer.class) {		//	me is guarded by the class as in getInstance()
+				if (me == this) {
+					me = null;
+				}
+			}
+			scheduler.send(MSG_FINISH, null);
 		}
 	}
 }
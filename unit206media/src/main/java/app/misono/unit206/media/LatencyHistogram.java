@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *	Log-linear histogram of non-negative values like HdrHistogram, with 1/16 relative precision.
+ *	Recording is lock-free and does not allocate, so it can be called from any thread per frame.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count, sum, max;
+	private final String name;
+
+	public LatencyHistogram(@NonNull String name) {
+		this.name = name;
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	@NonNull
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *	Records a value, negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		for ( ; ; ) {
+			long m = max.get();
+			if (value <= m || max.compareAndSet(m, value)) break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+	}
+
+	/**
+	 *	Returns the highest value equivalent to the given percentile (0 - 100).
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) return 0;
+
+		long target = Math.max(1, (long)Math.ceil(n * Math.min(percentile, 100) / 100));
+		long acc = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			acc += counts.get(i);
+			if (target <= acc) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_COUNT) return (int)value;
+
+		int e = 63 - Long.numberOfLeadingZeros(value);
+		int shift = e - SUB_BITS;
+		return SUB_COUNT + shift * SUB_COUNT + (int)((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	private static long highestValueOf(int index) {
+		if (index < SUB_COUNT) return index;
+
+		int shift = (index - SUB_COUNT) / SUB_COUNT;
+		long sub = (index - SUB_COUNT) % SUB_COUNT;
+		long lowest = (SUB_COUNT + sub) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 *	Returns "name: n=... mean=... p50=... p90=... p99=... max=..." with values divided by <tt>unit</tt>.
+	 */
+	@NonNull
+	public String summary(double unit) {
+		return String.format(Locale.US, "%s: n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+			name,
+			getCount(),
+			getMean() / unit,
+			getValueAtPercentile(50) / unit,
+			getValueAtPercentile(90) / unit,
+			getValueAtPercentile(99) / unit,
+			getMax() / unit
+		);
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return summary(1);
+	}
+}
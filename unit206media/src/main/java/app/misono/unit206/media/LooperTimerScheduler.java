@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.annotation.SuppressLint;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ *	{@link TimerScheduler} on a dedicated <tt>Looper</tt> thread. The timer dispatch is traced by {@link MediaTrace}.
+ */
+public final class LooperTimerScheduler implements TimerScheduler {
+	private final String name;
+
+	private Handler handler;
+
+	public LooperTimerScheduler(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public void start(Target target) {
+		ConditionVariable signal = new ConditionVariable();
+		new Thread(name) {
+			@SuppressLint("HandlerLeak")
+			@Override
+			public void run() {
+				Looper.prepare();
+				handler = new Handler(Looper.myLooper()) {
+					@Override
+					public void handleMessage(Message msg) {
+						target.handleMessage(msg.what, msg.obj);
+					}
+				};
+				signal.open();
+				Looper.loop();
+			}
+		}.start();
+		signal.block();
+	}
+
+	@Override
+	public long uptimeMillis() {
+		return SystemClock.uptimeMillis();
+	}
+
+	@Override
+	public void send(int what, Object obj) {
+		Message.obtain(handler, what, obj).sendToTarget();
+	}
+
+	@Override
+	public void sendAtTime(int what, long uptimeMillis) {
+		handler.sendEmptyMessageAtTime(what, uptimeMillis);
+	}
+
+	@Override
+	public void remove(int what) {
+		handler.removeMessages(what);
+	}
+
+	@Override
+	public void beginDispatch() {
+		MediaTrace.begin("JasaTimer.timeout");
+	}
+
+	@Override
+	public void endDispatch() {
+		MediaTrace.end();
+	}
+
+	@Override
+	public void close() {
+		handler.getLooper().quit();
+	}
+}
@@ -17,11 +17,10 @@
 package app.misono.unit206.media;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.util.Log;
 
 /**
- *	Detects video/avc encoding color format of each device model.
+ *	Detects the encoding color format of each device model, video/avc by default.
  */
 public final class MediaColorFormat {
 	private static final String	TAG = "MediaColorFormat";
@@ -35,26 +34,20 @@ public final class MediaColorFormat {
 	}
 
 	public static int getEncoderColorFormat(String mimeVideo) {
-		int n = MediaCodecList.getCodecCount();
-		for (int i = 0; i < n; i++) {
-			MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
-			String[] mimes = info.getSupportedTypes();
-			if (info.isEncoder()) {
-				for (String mime : mimes) {
-					if (mime.equals(mimeVideo)) {
-						try {
-							MediaCodecInfo.CodecCapabilities cap = info.getCapabilitiesForType(mime);
-							for (int k = 0; k < cap.colorFormats.length; k++) {
-								switch (cap.colorFormats[k]) {
-								case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-								case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-									return cap.colorFormats[k];
-								}
-							}
-						} catch (Exception e) {
-							// nop
-						}
-					}
+		return getEncoderColorFormat(mimeVideo, 0, 0);
+	}
+
+	/**
+	 *	Returns the YUV420 color format of the fastest encoder of <tt>mimeVideo</tt> at <tt>width</tt> x <tt>height</tt>
+	 *	ranked by {@link CodecSelector}, 0 x 0 ranks at the default size.
+	 */
+	public static int getEncoderColorFormat(String mimeVideo, int width, int height) {
+		for (CodecSelector.Rank rank : CodecSelector.getEncoders(mimeVideo, width, height)) {
+			for (int color : rank.colorFormats) {
+				switch (color) {
+				case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+				case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+					return color;
 				}
 			}
 		}
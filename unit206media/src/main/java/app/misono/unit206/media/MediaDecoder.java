@@ -26,6 +26,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import app.misono.unit206.task.Taskz;
@@ -46,24 +47,32 @@ import java.util.concurrent.Executors;
 @RequiresApi(17)
 public final class MediaDecoder {
 	private static final String	TAG	= "MediaDecoder";
+	private static final Executor EXECUTOR = Executors.newCachedThreadPool();
 
 	public Object tag;
 
 	private final MediaExtractor extractor;
+	private final DecoderStats stats;
 	private final Callback callback;
 	private final Executor executor;
 	private final Params params;
 
+	private volatile DecoderStats.Listener statsListener;
 	private MovieSurface movieSurface;
+	private Renderer renderer;
+	private DecoderPool pool;
 	private Throwable throwable;
 	private Surface surface;
-	private boolean fDone;
+	private boolean fDone, syncEos;
+	private volatile long nanoStatsInterval;
+	private long usecSyncTarget;
 
 	private MediaDecoder(Params params, Callback callback) {
 		this.params = params != null ? params : new Params();
 		this.callback = callback;
 		extractor = new MediaExtractor();
-		executor = Executors.newCachedThreadPool();
+		executor = EXECUTOR;
+		stats = new DecoderStats();
 	}
 
 	/**
@@ -77,7 +86,8 @@ public final class MediaDecoder {
 		this.params = params != null ? params : new Params();
 		this.callback = callback;
 		this.extractor = extractor;
-		executor = Executors.newCachedThreadPool();
+		executor = EXECUTOR;
+		stats = new DecoderStats();
 	}
 
 	/**
@@ -170,14 +180,22 @@ public final class MediaDecoder {
 	public Task<Void> startTask() {
 		return Taskz.call(executor, () -> {
 			movieSurface = null;
+			DecoderPool pool = this.pool;
+			MediaFormat decoderFormat = null;
 			MediaCodec decoder = null;
 			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 			int n = extractor.getTrackCount();
 			JasaTimer timer = JasaTimer.getInstance();
 			JasaTimer.Callback timerCallback = obj -> {
 Log.e(TAG, "TIMEOUT...");
+				stats.stalled();
 				fDone	= true;
+				DecoderStats.Listener listener = statsListener;
+				if (listener != null) {
+					listener.stats(MediaDecoder.this, stats);		//	the decoder thread may be hung in the codec
+				}
 			};
+			JasaTimer.TimerHandle watchdog = timer.createHandle(timerCallback, null);
 			try {
 				for (int i = 0; i < n; i++) {
 					MediaFormat fmt = extractor.getTrackFormat(i);
@@ -193,8 +211,11 @@ Log.e(TAG, "mime:" + mime);
 						}
 						extractor.selectTrack(i);
 						extractor.seekTo(params.usecStart, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+						usecSyncTarget = params.usecStart;
+						syncEos = false;
 						try {
-							decoder	= MediaCodec.createDecoderByType(mime);
+							decoder	= pool != null ? pool.acquire(fmt) : CodecSelector.createDecoder(fmt);
+							decoderFormat = fmt;
 						} catch (IOException e) {
 							continue;
 						}
@@ -210,8 +231,12 @@ Log.e(TAG, "mime:" + mime);
 							}
 						} catch (IllegalStateException e) {
 							Log.e(TAG, "This device does not support " + mime + " or the video size is bigger ...");
-							decoder.stop();
-							decoder.release();
+							if (pool != null) {
+								pool.discard(decoder);
+							} else {
+								decoder.stop();
+								decoder.release();
+							}
 							decoder	= null;
 							if (movieSurface != null) {
 								movieSurface.release();
@@ -224,29 +249,47 @@ Log.e(TAG, "mime:" + mime);
 						ByteBuffer[] inbuf = decoder.getInputBuffers();
 						int frameNo	= 0;
 						boolean fEos = false;
-						timer.start(1000, timerCallback, null);
+						long nanoStats = System.nanoTime();
+						stats.start();
+						watchdog.reschedule(1000);
 						for ( ; ; ) {
 							if (fDone) break;
 
 							if (!fEos) {
 								int index = decoder.dequeueInputBuffer(0);
 								if (0 <= index) {
-									ByteBuffer buf = inbuf[index];
-									int size = extractor.readSampleData(buf, 0);
-									if (params.repeatMode && size < 0 ) {
-										extractor.seekTo(params.usecStart, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-										size = extractor.readSampleData(buf, 0);
-									}
-									if (size < 0) {
-										fEos = true;
-										decoder.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-									} else {
-										decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
-										extractor.advance();
+									MediaTrace.begin("MediaDecoder.queueInput", extractor.getSampleTime());
+									try {
+										ByteBuffer buf = inbuf[index];
+										long t0 = System.nanoTime();
+										int size = syncEos ? -1 : extractor.readSampleData(buf, 0);
+										if (params.repeatMode && size < 0 ) {
+											extractor.seekTo(params.usecStart, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+											usecSyncTarget = params.usecStart;
+											syncEos = false;
+											size = extractor.readSampleData(buf, 0);
+										}
+										stats.getExtractorRead().record(System.nanoTime() - t0);
+										if (size < 0) {
+											fEos = true;
+											decoder.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+										} else {
+											long usec = extractor.getSampleTime();
+											decoder.queueInputBuffer(index, 0, size, usec, 0);
+											if (params.syncOnly) {
+												advanceSync(usec);
+											} else {
+												extractor.advance();
+											}
+										}
+									} finally {
+										MediaTrace.end();
 									}
 								}
 							}
+							MediaTrace.begin("MediaDecoder.dequeueOutput");
 							int index = decoder.dequeueOutputBuffer(info, 1000);
+							MediaTrace.end();
 							if (index < 0) {
 								switch (index) {
 								case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -272,37 +315,80 @@ Log.w(TAG, "duration:" + msec + "msec");
 									fDone = true;
 									break;
 								}
-								timer.stop(timerCallback, null);
-								timer.start(1000, timerCallback, null);
-								decoder.releaseOutputBuffer(index, true);
-								if (params.fps == 0 || frameNo * 1000 / params.fps <= msec) {
-									try {
-										if (movieSurface != null) {
-											movieSurface.awaitNewImage();
-											movieSurface.drawImage(true);
+								watchdog.reschedule(1000);
+								boolean render = params.fps == 0 || frameNo * 1000 / params.fps <= msec;
+								MediaTrace.begin("MediaDecoder.render", info.presentationTimeUs);
+								try {
+									decoder.releaseOutputBuffer(index, render);			//	dropped frames are never composited
+									stats.decoded(render);
+									if (render) {
+										try {
+											if (movieSurface != null) {
+												long t0 = System.nanoTime();
+												movieSurface.awaitNewImage();
+												stats.getAwaitNewImage().record(System.nanoTime() - t0);
+											}
+											if (params.holdCallback) {
+												watchdog.cancel();
+											}
+											if (movieSurface != null) {
+												if (renderer != null) {
+													renderer.draw(MediaDecoder.this, movieSurface, frameNo, info);
+												} else {
+													movieSurface.drawImage(true);
+												}
+											}
+											callback.decoded(MediaDecoder.this, frameNo, info);
+											if (params.holdCallback) {
+												watchdog.reschedule(1000);
+											}
+											frameNo++;
+										} catch (InterruptedException e) {
+											setThrowable(e);
+											break;
 										}
-										callback.decoded(MediaDecoder.this, frameNo, info);
-										frameNo++;
-									} catch (InterruptedException e) {
-										setThrowable(e);
-										break;
 									}
+								} finally {
+									MediaTrace.end();
+								}
+							}
+							DecoderStats.Listener listener = statsListener;
+							if (listener != null) {
+								long now = System.nanoTime();
+								if (nanoStatsInterval <= now - nanoStats) {
+									nanoStats = now;
+									listener.stats(MediaDecoder.this, stats);
 								}
 							}
 						}
-						timer.stop(timerCallback, null);
+						watchdog.cancel();
 Log.w(TAG, "EXIT:" + frameNo);
 						break;
 					}
 				}
 			} finally {
-				timer.stop(timerCallback, null);
+				watchdog.cancel();
+				stats.stop();
+				DecoderStats.Listener listener = statsListener;
+				if (listener != null) {
+					listener.stats(MediaDecoder.this, stats);
+				}
 				if (movieSurface != null) {
-					movieSurface.release();
+					try {
+						if (renderer != null) {
+							renderer.end(MediaDecoder.this, movieSurface);
+						}
+					} finally {
+						movieSurface.release();
+					}
 				}
 				if (decoder != null) {
-					decoder.stop();
-					decoder.release();
+					if (pool != null) {
+						pool.recycle(decoderFormat, decoder);
+					} else {
+						decoder.stop();
+						decoder.release();
+					}
 				}
 				extractor.release();
 			}
@@ -310,6 +396,25 @@ Log.w(TAG, "EXIT:" + frameNo);
 		});
 	}
 
+	/**
+	 *	Seeks to the sync sample nearest to the next step, and never back to or before the sample just queued.
+	 *	The end of the stream is reported by the next read when no later sync sample exists.
+	 */
+	private void advanceSync(long usecQueued) {
+		usecSyncTarget += Math.max(1, params.usecStep);
+		extractor.seekTo(usecSyncTarget, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+		long usec = extractor.getSampleTime();
+		if (usec <= usecQueued) {
+			extractor.seekTo(usecQueued + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+			usec = extractor.getSampleTime();
+			if (usec <= usecQueued) {
+				syncEos = true;
+				return;
+			}
+		}
+		usecSyncTarget = Math.max(usecSyncTarget, usec);
+	}
+
 	private void setThrowable(Throwable e) {
 if (e != null) e.printStackTrace();
 		if (throwable == null) {
@@ -321,6 +426,21 @@ if (e != null) e.printStackTrace();
 		return throwable;
 	}
 
+	/**
+	 *	Borrows the decoder from the pool and returns it stopped after decoding, instead of creating and releasing it.
+	 */
+	public void setDecoderPool(@Nullable DecoderPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 *	Draws the frames with the renderer instead of MovieSurface.drawImage(true).
+	 *	It is ignored when the output surface is set by setSurface(Surface).
+	 */
+	public void setRenderer(@Nullable Renderer renderer) {
+		this.renderer = renderer;
+	}
+
 	public void setSurface(Surface surface) {
 		this.surface = surface;
 	}
@@ -336,11 +456,31 @@ if (e != null) e.printStackTrace();
 	public Bitmap getBitmap(Bitmap bitmap) {
 		Bitmap rc = null;
 		if (movieSurface != null) {
+			long t0 = System.nanoTime();
 			rc = movieSurface.getBitmap(bitmap);
+			stats.getReadback().record(System.nanoTime() - t0);
 		}
 		return rc;
 	}
 
+	/**
+	 *	Returns the statistics of this decoder, it is updated while decoding.
+	 */
+	@NonNull
+	public DecoderStats getStats() {
+		return stats;
+	}
+
+	/**
+	 *	Sets the listener which receives the statistics every <tt>msecInterval</tt> in the decoder thread,
+	 *	and once more when the decoding ends. When no output comes for a second, the watchdog ends the decoding
+	 *	and the listener receives them in the timer thread too, even if the decoder thread is hung.
+	 */
+	public void setStatsListener(@Nullable DecoderStats.Listener listener, int msecInterval) {
+		nanoStatsInterval = msecInterval * 1000000L;
+		statsListener = listener;
+	}
+
 	public void finish() {
 		fDone = true;
 	}
@@ -355,7 +495,9 @@ if (e != null) e.printStackTrace();
 
 	public static class Params {
 		public boolean repeatMode;
-		public long usecStart;
+		public boolean syncOnly;		// decodes only sync samples, about one for each usecStep
+		public boolean holdCallback;	// the renderer and the callback may hold the decoder thread, the watchdog is suspended then
+		public long usecStart, usecStep;
 		public int outWidth, outHeight, duration, fps;
 
 		public Params() {
@@ -363,7 +505,23 @@ if (e != null) e.printStackTrace();
 	}
 
 	public interface Callback {
+		/**
+		 *	Called in the decoder thread for each rendered frame.
+		 *	The watchdog ends a decoding held here for a second unless {@link Params#holdCallback} is set.
+		 */
 		void decoded(@NonNull MediaDecoder decoder, int frameNo, MediaCodec.BufferInfo info);
 		void codecinfo(@NonNull MediaDecoder decoder, MediaFormat fmt);
 	}
+
+	/**
+	 *	Called in the decoder thread with the EGL context of the surface current.
+	 */
+	public interface Renderer {
+		void draw(@NonNull MediaDecoder decoder, @NonNull MovieSurface surface, int frameNo, MediaCodec.BufferInfo info);
+
+		/**
+		 *	Called once when the decoding ends, before the surface is released, e.g. to read back what is drawn.
+		 */
+		void end(@NonNull MediaDecoder decoder, @NonNull MovieSurface surface);
+	}
 }
\ No newline at end of file
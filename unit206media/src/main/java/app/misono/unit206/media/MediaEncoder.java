@@ -17,37 +17,55 @@
 package app.misono.unit206.media;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Build;
-import android.os.Message;
+import android.os.Bundle;
 import android.util.Log;
+import android.view.Surface;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.WorkerThread;
 
+import app.misono.unit206.misc.ThreadGate;
+
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.lang.Runnable;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
-import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
- *	Creates a mp4 video file from YUV data.
+ *	Creates a mp4 video file from YUV data, or from frames drawn into the input surface.
  */
 @RequiresApi(18)
 public final class MediaEncoder implements Closeable {
 	private static final String	TAG = "MediaEncoder";
+	private static final int CAPACITY = 16;			// payloads queued before inputPayload() blocks
+	private static final int PTS_RING = 64;			// in-flight frames tracked for the codec latency
+	private static final long USEC_DRAIN = 10000;	// dequeue timeout while the input surface is backed up
+
+	private static Executor finalizer;
+
+	private final Callback closedCallback;
 
 	private EncoderThread encThread;
+	private SegmentCallback segmentCallback;
+	private long segmentUsec, segmentBytes;
+	private volatile EncoderMetrics metrics;
 	private MediaMuxer muxer;
 	private Callback callback;
+	private ThreadGate surfaceGate;
+	private volatile Surface inputSurface;
 	private boolean fGivenMuxer, fCancel;
 
 	public MediaEncoder(Callback callback) {
 		this.callback = callback;
+		closedCallback = callback;
 		encThread = new EncoderThread();
 	}
 
@@ -68,41 +86,113 @@ public final class MediaEncoder implements Closeable {
 		checkClosed().start(null, fmt);
 	}
 
-	private class EncoderThread extends MessageThread {
+	/**
+	 *	Starts encoding from the input surface of the codec instead of YUV payloads, and blocks until it is configured.
+	 *	Call {@link #drainOutput(int, long)} before drawing each frame into the surface, e.g. by EGL with eglPresentationTimeANDROID().
+	 *	{@link #endOfPayload()} signals the end of the stream.
+	 *
+	 *	@return null if the codec can not be started, Callback.fatalError() has been called then
+	 */
+	@WorkerThread
+	@Nullable
+	public Surface startSurface(String outPath, MediaFormat fmt) throws InterruptedException {
+		fGivenMuxer	= false;
+		fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+		ThreadGate gate = new ThreadGate();
+		surfaceGate = gate;
+		checkClosed().start(outPath, fmt);
+		gate.block();
+		return inputSurface;
+	}
+
+	/**
+	 *	Writes the output the codec has ready without waiting for it. Only when fewer than <tt>frames</tt>
+	 *	frames have been written, i.e. the input surface is backed up, it waits for the codec up to <tt>msecTimeout</tt>.
+	 *	Call it before each eglSwapBuffers() with the frames drawn so far minus the backlog allowed.
+	 */
+	@WorkerThread
+	public void drainOutput(int frames, long msecTimeout) {
+		checkClosed().sendSync(EncoderThread.MSG_DRAIN, new long[] {frames, System.nanoTime() + msecTimeout * 1000000});
+	}
+
+	/**
+	 *	Splits the output into a new mp4 file every <tt>usec</tt> or <tt>bytes</tt> at the next sync frame,
+	 *	without restarting the codec. Call it before {@link #start(String, MediaFormat)},
+	 *	the path given to start() is the first segment.
+	 *
+	 *	@param usec		the duration of a segment, 0 for no limit
+	 *	@param bytes	the size of a segment, 0 for no limit
+	 *	@param callback	null to write a single file
+	 */
+	public void setSegments(long usec, long bytes, @Nullable SegmentCallback callback) {
+		segmentUsec = usec;
+		segmentBytes = bytes;
+		segmentCallback = callback;
+	}
+
+	private static synchronized Executor getFinalizer() {
+		if (finalizer == null) {
+			finalizer = Executors.newSingleThreadExecutor(r -> {
+				Thread th = new Thread(r, "MediaEncoder.finalizer");
+				th.setDaemon(true);
+				return th;
+			});
+		}
+		return finalizer;
+	}
+
+	private class EncoderThread extends Actor {
 		private static final int MSG_QUIT = 0;
 		private static final int MSG_START = 1;
 		private static final int MSG_CANCEL = 2;
 		private static final int MSG_ERROR = 3;
+		private static final int MSG_INPUT = 4;
+		private static final int MSG_DRAIN = 5;
 
 		private static final int STATE_IDLE = 0;
 		private static final int STATE_STARTED = 1;
 
-		private final Vector<SoftReference<InputPayload>> poolPayload;
+		private final long[] ptsUsec, ptsNanos;
 
 		private MediaCodec.BufferInfo info;
+		private MediaFormat outputFormat;
 		private MediaCodec encoder;
 		private String outPath;
-		private int state, frames, videoTrack;
+		private long segmentStartUsec, segmentSize;
+		private boolean syncRequested;
+		private int state, frames, videoTrack, ptsNext, segment;
 
 		private EncoderThread() {
-			super();
+			super(CAPACITY);
 			state = STATE_IDLE;
-			poolPayload = new Vector<>();
+			ptsUsec = new long[PTS_RING];
+			ptsNanos = new long[PTS_RING];
 		}
 
 		private void start(String outPath, MediaFormat fmt) {
 			this.outPath = outPath;
-			sendMessage(MSG_START, fmt);
+			send(MSG_START, fmt);
 		}
 
 		@Override
-		public void handleMessage(Message msg) {
+		protected void handleMessage(int what, Object obj, long arg) {
+			if (what == MSG_INPUT) {
+				input((byte[])obj, arg);
+				return;
+			}
+			if (what == MSG_DRAIN) {
+				if (state == STATE_STARTED) {
+					long[] drain = (long[])obj;
+					checkOutput(false, (int)drain[0], drain[1]);
+				}
+				return;
+			}
 			switch (state) {
 			case STATE_IDLE:
-				stateIdle(msg);
+				stateIdle(what, obj);
 				break;
 			case STATE_STARTED:
-				stateStarted(msg);
+				stateStarted(what, obj);
 				break;
 			}
 		}
@@ -134,7 +224,7 @@ public final class MediaEncoder implements Closeable {
 
 				@Override
 				public void onError(MediaCodec codec, MediaCodec.CodecException e) {
-					sendMessage(MSG_ERROR, e);
+					sendUrgent(MSG_ERROR, e);
 				}
 
 				@Override
@@ -143,35 +233,50 @@ public final class MediaEncoder implements Closeable {
 			});
 		}
 
-		private void stateIdle(Message msg) {
-			switch (msg.what) {
+		private void stateIdle(int what, Object obj) {
+			switch (what) {
 			case MSG_START:
 				try {
 					fCancel = false;
+					if (segmentCallback != null && fGivenMuxer) {
+						throw new IllegalStateException("segments require the output path...");
+					}
+					segment = 0;
+					segmentStartUsec = -1;
+					segmentSize = 0;
+					syncRequested = false;
 					if (!fGivenMuxer) {
 						deleteOutputFile();				//	Delete by myself because MediaMuxer does not truncate the file.
 						muxer = new MediaMuxer(outPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 					}
 					info = new MediaCodec.BufferInfo();
-					MediaFormat fmt = (MediaFormat)msg.obj;
-					encoder = MediaCodec.createEncoderByType(fmt.getString(MediaFormat.KEY_MIME));
+					MediaFormat fmt = (MediaFormat)obj;
+					encoder = CodecSelector.createEncoder(fmt);
 					if (21 <= Build.VERSION.SDK_INT) {
 //	TODO						setCallback21();
 					}
 					encoder.configure(fmt, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+					if (surfaceGate != null) {
+						inputSurface = encoder.createInputSurface();
+					}
 					encoder.start();
 					state = STATE_STARTED;
-				} catch (IOException e) {
+				} catch (IOException | IllegalStateException e) {
 					notifyFatalError(e);
 				}
+				openSurfaceGate();
+				break;
+			case MSG_QUIT:
+				quit();
 				break;
 			}
 		}
 
-		private void stateStarted(Message msg) {
-			switch (msg.what) {
+		private void stateStarted(int what, Object obj) {
+			switch (what) {
 			case MSG_START:
 				notifyFatalError(new IllegalStateException("MediaEncoder is already started..."));
+				openSurfaceGate();
 				break;
 			case MSG_CANCEL:
 				notifyCancel();
@@ -180,27 +285,38 @@ public final class MediaEncoder implements Closeable {
 				quit();
 				break;
 			case MSG_ERROR:
-				notifyFatalError((Throwable)msg.obj);
+				notifyFatalError((Throwable)obj);
 				break;
 			}
 		}
 
+		private void openSurfaceGate() {
+			ThreadGate gate = surfaceGate;
+			if (gate != null) {
+				surfaceGate = null;
+				gate.open();
+			}
+		}
+
 		private void clean(boolean success) {
 			if (encoder != null) {
-				encoder.stop();
+				if (state == STATE_STARTED) {
+					encoder.stop();				//	stop() throws if start() has failed or not been called
+				}
 				encoder.release();
 				encoder = null;
 			}
+			if (inputSurface != null) {
+				inputSurface.release();
+				inputSurface = null;
+			}
 			if (!fGivenMuxer && muxer != null) {
-				try {
-					muxer.stop();
-				} catch (IllegalStateException e) {
-					//	0-duration samples found
-				}
-				try {
-					muxer.release();
-				} catch (IllegalStateException e) {
-					//	0-duration samples found
+				releaseMuxer(muxer);
+				SegmentCallback cb = segmentCallback;
+				if (success && cb != null) {
+					int index = segment;
+					String path = outPath;
+					getFinalizer().execute(() -> cb.segmentFinished(MediaEncoder.this, index, path));
 				}
 			}
 			muxer = null;
@@ -211,12 +327,74 @@ public final class MediaEncoder implements Closeable {
 			state = STATE_IDLE;
 		}
 
+		/**
+		 *	Decides whether the output sample at <tt>info</tt> starts a new segment.
+		 *	A sync frame is requested when the segment is full, the split happens at the next sync frame.
+		 */
+		private void segmentSample() {
+			if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				return;
+			}
+			long usec = info.presentationTimeUs;
+			if (segmentStartUsec < 0) {
+				segmentStartUsec = usec;
+			} else if ((0 < segmentUsec && segmentStartUsec + segmentUsec <= usec)
+					|| (0 < segmentBytes && segmentBytes <= segmentSize)) {
+				if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+					if (nextSegment()) {
+						segmentStartUsec = usec;
+						segmentSize = 0;
+					}
+					syncRequested = false;
+				} else if (!syncRequested && 19 <= Build.VERSION.SDK_INT) {
+					Bundle params = new Bundle();
+					params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+					encoder.setParameters(params);
+					syncRequested = true;
+				}
+			}
+			segmentSize += info.size;
+		}
+
+		/**
+		 *	Switches to a new muxer, the previous one is finalized in the background.
+		 *
+		 *	@return false if the new file can not be created, the current segment continues.
+		 */
+		private boolean nextSegment() {
+			SegmentCallback cb = segmentCallback;
+			String path = cb.nextSegment(MediaEncoder.this, segment + 1);
+			MediaMuxer next;
+			try {
+				new File(path).delete();
+				next = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			} catch (IOException e) {
+				Log.w(TAG, "nextSegment:" + e);
+				return false;
+			}
+			videoTrack = next.addTrack(outputFormat);
+			next.start();
+			MediaMuxer prev = muxer;
+			int index = segment;
+			String prevPath = outPath;
+			getFinalizer().execute(() -> {
+				releaseMuxer(prev);
+				cb.segmentFinished(MediaEncoder.this, index, prevPath);
+			});
+			muxer = next;
+			outPath = path;
+			segment++;
+			return true;
+		}
+
 		@Override
-		public void done() {
-			clean(false);
-			poolPayload.clear();
-			if (callback != null) {
-				callback.closed(MediaEncoder.this);
+		protected void done() {
+			if (state == STATE_STARTED) {
+				clean(false);					//	not after clean(true), it would delete the finished file
+			}
+			openSurfaceGate();
+			if (closedCallback != null) {
+				closedCallback.closed(MediaEncoder.this);	//	even after close(), the payloads are not touched anymore
 			}
 		}
 
@@ -227,9 +405,28 @@ public final class MediaEncoder implements Closeable {
 		}
 
 		private void checkOutput(boolean drain) {
+			checkOutput(drain, 0, 0);
+		}
+
+		/**
+		 *	@param drain		true to write until the end of stream
+		 *	@param minFrames	waits for the codec while fewer frames have been written, 0 not to wait
+		 *	@param nanoDeadline	stops waiting at System.nanoTime() of it, 0 for none
+		 */
+		private void checkOutput(boolean drain, int minFrames, long nanoDeadline) {
+			MediaTrace.begin("MediaEncoder.checkOutput");
+			try {
+				checkOutputTraced(drain, minFrames, nanoDeadline);
+			} finally {
+				MediaTrace.end();
+			}
+		}
+
+		private void checkOutputTraced(boolean drain, int minFrames, long nanoDeadline) {
 			boolean fTryAgainLater = false;
 			for ( ; ; ) {
-				int index = encoder.dequeueOutputBuffer(info, 0);
+				boolean wait = frames < minFrames && (nanoDeadline == 0 || nanoDeadline - System.nanoTime() > 0);
+				int index = encoder.dequeueOutputBuffer(info, wait ? USEC_DRAIN : 0);
 				if (index < 0) {
 					switch (index) {
 					case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -239,6 +436,7 @@ public final class MediaEncoder implements Closeable {
 						break;
 					case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
 						MediaFormat fmt = encoder.getOutputFormat();
+						outputFormat = fmt;
 						videoTrack = muxer.addTrack(fmt);
 						muxer.start();
 						break;
@@ -249,9 +447,29 @@ public final class MediaEncoder implements Closeable {
 				} else {
 					ByteBuffer[] outbuf = encoder.getOutputBuffers();
 					ByteBuffer buf = outbuf[index];
-					muxer.writeSampleData(videoTrack, buf, info);
-					frames++;
-					encoder.releaseOutputBuffer(index, false);
+					MediaTrace.begin("MediaEncoder.write", info.presentationTimeUs);
+					try {
+						if (segmentCallback != null) {
+							segmentSample();
+						}
+						EncoderMetrics m = metrics;
+						if (m != null) {
+							long now = System.nanoTime();
+							long nanos = removePts(info.presentationTimeUs);
+							if (nanos != 0) {
+								m.stage(EncoderMetrics.STAGE_CODEC, now - nanos);
+							}
+							muxer.writeSampleData(videoTrack, buf, info);
+							m.stage(EncoderMetrics.STAGE_WRITE, System.nanoTime() - now);
+							m.written(info.size);
+						} else {
+							muxer.writeSampleData(videoTrack, buf, info);
+						}
+						frames++;
+						encoder.releaseOutputBuffer(index, false);
+					} finally {
+						MediaTrace.end();
+					}
 					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
 						clean(true);
 						if (callback != null) {
@@ -260,83 +478,96 @@ public final class MediaEncoder implements Closeable {
 						break;
 					}
 				}
-				if (!drain && fTryAgainLater) break;
+				if (!drain && fTryAgainLater) {
+					if (!wait) break;
+					fTryAgainLater = false;
+				}
 			}
 		}
 
-		private InputPayload obtainInputPayload() {
+		/**
+		 *	Queues a YUV payload into the codec. <tt>buf</tt> is null at the end of stream.
+		 */
+		private void input(byte[] buf, long usecSampleTime) {
+			MediaTrace.begin("MediaEncoder.input", buf != null ? usecSampleTime : -1);
 			try {
-				for ( ; ; ) {
-					if (poolPayload.size() == 0) break;
-
-					SoftReference<InputPayload> ref = poolPayload.remove(0);
-					InputPayload rc = ref.get();
-					ref.clear();
-					if (rc != null) return rc;
-				}
-			} catch (IndexOutOfBoundsException e) {
-				// nop
+				inputTraced(buf, usecSampleTime);
+			} finally {
+				MediaTrace.end();
 			}
-
-			return new InputPayload();
-		}
-
-		private void recycleInputPayload(InputPayload payload) {
-			payload.clear();
-			poolPayload.add(new SoftReference<>(payload));
 		}
 
-		private class InputPayload implements Runnable {
-			private byte[]	buf;
-			private long	usecSampleTime;
-
-			private InputPayload() {
-			}
-
-			private void init(byte[] buf, long usecSampleTime) {
-				this.buf = buf;
-				this.usecSampleTime = usecSampleTime;
-			}
-
-			private void clear() {
-				buf	= null;
+		private void inputTraced(byte[] buf, long usecSampleTime) {
+			EncoderMetrics m = metrics;
+			long queueNanos = getQueueNanos();
+			if (m != null && buf != null && queueNanos != 0) {
+				m.stage(EncoderMetrics.STAGE_QUEUE, queueNanos);
 			}
-
-			@Override
-			public void run() {
-				if (state == STATE_STARTED) {
-					ByteBuffer[] inbuf = encoder.getInputBuffers();
-					for ( ; ; ) {
-						if (fCancel) {
-							notifyCancel();
-							break;
-						}
-						checkOutput(false);
-						int index = encoder.dequeueInputBuffer(1000);
-						if (0 <= index) {
-							if (buf != null) {
-								ByteBuffer bb = inbuf[index];
-								bb.put(buf, 0, buf.length);
-								encoder.queueInputBuffer(index, 0, buf.length, usecSampleTime, 0);
-							} else {
-								encoder.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-								checkOutput(true);
+			if (state == STATE_STARTED && inputSurface != null) {
+				if (buf == null) {
+					encoder.signalEndOfInputStream();
+					checkOutput(true);
+				} else {
+					notifyFatalError(new IllegalStateException("payload to the input surface..."));
+				}
+			} else if (state == STATE_STARTED) {
+				ByteBuffer[] inbuf = encoder.getInputBuffers();
+				long waitDequeue = 0;
+				for ( ; ; ) {
+					if (fCancel) {
+						notifyCancel();
+						break;
+					}
+					checkOutput(false);
+					long t0 = m != null ? System.nanoTime() : 0;
+					int index = encoder.dequeueInputBuffer(1000);
+					if (m != null) {
+						waitDequeue += System.nanoTime() - t0;
+					}
+					if (0 <= index) {
+						if (buf != null) {
+							ByteBuffer bb = inbuf[index];
+							bb.put(buf, 0, buf.length);
+							encoder.queueInputBuffer(index, 0, buf.length, usecSampleTime, 0);
+							if (m != null) {
+								m.stage(EncoderMetrics.STAGE_DEQUEUE_INPUT, waitDequeue);
+								addPts(usecSampleTime);
 							}
-							break;
+						} else {
+							encoder.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+							checkOutput(true);
 						}
+						break;
 					}
 				}
-				if (callback != null && buf != null) {
-					callback.recyclePayload(MediaEncoder.this, buf);
-				}
-				recycleInputPayload(this);
+			}
+			if (callback != null && buf != null) {
+				callback.recyclePayload(MediaEncoder.this, buf);
 			}
 		}
 
 		private void inputPayload(byte[] buf, long usecSampleTime) {
-			InputPayload payload = obtainInputPayload();
-			payload.init(buf, usecSampleTime);
-			post(payload);
+			send(MSG_INPUT, buf, usecSampleTime);
+		}
+
+		private void addPts(long usec) {
+			ptsUsec[ptsNext] = usec;
+			ptsNanos[ptsNext] = System.nanoTime();
+			ptsNext = (ptsNext + 1) % PTS_RING;
+		}
+
+		/**
+		 *	@return the time when the frame of <tt>usec</tt> is queued into the codec, or 0 if unknown.
+		 */
+		private long removePts(long usec) {
+			for (int i = 0; i < PTS_RING; i++) {
+				if (ptsNanos[i] != 0 && ptsUsec[i] == usec) {
+					long rc = ptsNanos[i];
+					ptsNanos[i] = 0;
+					return rc;
+				}
+			}
+			return 0;
 		}
 	}
 
@@ -348,13 +579,16 @@ public final class MediaEncoder implements Closeable {
 		return th;
 	}
 
+	/**
+	 *	Queues a YUV payload. Blocks while the encoder mailbox is full.
+	 */
 	public void inputPayload(byte[] buf, long usecSampleTime) {
 		checkClosed().inputPayload(buf, usecSampleTime);
 	}
 
 	public void cancel() {
 		fCancel = true;
-		checkClosed().sendMessage(EncoderThread.MSG_CANCEL);
+		checkClosed().sendUrgent(EncoderThread.MSG_CANCEL, null);
 	}
 
 	public void endOfPayload() {
@@ -367,11 +601,55 @@ public final class MediaEncoder implements Closeable {
 		EncoderThread th = encThread;
 		if (th != null) {
 			encThread = null;
-			th.sendMessage(EncoderThread.MSG_QUIT);
+			th.send(EncoderThread.MSG_QUIT);
 		}
 	}
 
+	/**
+	 *	Sets the listener of per-frame latencies, or null to stop measuring.
+	 */
+	public void setMetrics(EncoderMetrics metrics) {
+		this.metrics = metrics;
+		EncoderThread th = encThread;
+		if (th != null) {
+			th.setQueueTimestamps(metrics != null);
+		}
+	}
+
+	/**
+	 *	Returns the number of payloads and messages waiting in the encoder mailbox.
+	 */
+	public int getQueueDepth() {
+		EncoderThread th = encThread;
+		return th != null ? th.getDepth() : 0;
+	}
+
 	public static MediaFormat createVideoFormat(String mime, int width, int height, int fps) {
+		MediaFormat	fmt = MediaFormat.createVideoFormat(mime, width, height);
+		fmt.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+		fmt.setInteger(MediaFormat.KEY_BIT_RATE, getDefaultBitRate(width, height));
+		fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaColorFormat.getEncoderColorFormat(mime, width, height));
+		fmt.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		return fmt;
+	}
+
+	/**
+	 *	Creates the format from <tt>params</tt> including its tuning fields.
+	 *	The MIME type is resolved by {@link VideoEncoderParams#resolveMimeType(int, int)}.
+	 *	The bit rate is chosen by the size if params.bitRate is 0.
+	 */
+	public static MediaFormat createVideoFormat(int width, int height, @NonNull VideoEncoderParams params) {
+		String mime = params.resolveMimeType(width, height);
+		MediaFormat	fmt = MediaFormat.createVideoFormat(mime, width, height);
+		fmt.setInteger(MediaFormat.KEY_FRAME_RATE, params.fps);
+		fmt.setInteger(MediaFormat.KEY_BIT_RATE, 0 < params.bitRate ? params.bitRate : getDefaultBitRate(width, height));
+		fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaColorFormat.getEncoderColorFormat(mime, width, height));
+		fmt.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, params.intervalKeyFrame);
+		params.applyTo(fmt);
+		return fmt;
+	}
+
+	private static int getDefaultBitRate(int width, int height) {
 		int wh = Math.min(width, height);
 		//
 		//	http://www.lighterra.com/papers/videoencodingh264/
@@ -394,12 +672,35 @@ public final class MediaEncoder implements Closeable {
 		} else {
 			bitRate	= 20000 * 1000;
 		}
-		MediaFormat	fmt = MediaFormat.createVideoFormat(mime, width, height);
-		fmt.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
-		fmt.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-		fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaColorFormat.getEncoderColorFormat());
-		fmt.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-		return fmt;
+		return bitRate;
+	}
+
+	private static void releaseMuxer(MediaMuxer muxer) {
+		try {
+			muxer.stop();
+		} catch (IllegalStateException e) {
+			//	0-duration samples found
+		}
+		try {
+			muxer.release();
+		} catch (IllegalStateException e) {
+			//	0-duration samples found
+		}
+	}
+
+	public interface SegmentCallback {
+		/**
+		 *	Returns the path of the segment <tt>index</tt>, called in the encoder thread.
+		 */
+		@WorkerThread
+		@NonNull
+		String nextSegment(MediaEncoder encoder, int index);
+
+		/**
+		 *	Called in a background thread when the segment file is finalized, e.g. to upload it.
+		 */
+		@WorkerThread
+		void segmentFinished(MediaEncoder encoder, int index, String path);
 	}
 
 	public interface Callback {
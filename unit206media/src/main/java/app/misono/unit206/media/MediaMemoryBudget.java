@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.Locale;
+
+/**
+ *	Process-wide budget of the large buffers of this library in bytes.
+ *	Producers {@link #acquire(int, long, long)} before allocating and wait while the budget is exhausted,
+ *	and {@link #release(int, long)} when freed.
+ *	Pools and caches reserve what they keep by {@link #tryAcquireOrCharge(int, long)}, and do not keep it
+ *	when the budget is exhausted: it is only {@link #charge(int, long)}d while in use then.
+ *	Charged bytes are reported in the usage but do not hold back the producers.
+ */
+public final class MediaMemoryBudget {
+	public static final int COMPONENT_YUV_PAYLOAD = 0;		//	YUV frames queued into the encoders
+	public static final int COMPONENT_PIXEL_BUFFER = 1;		//	direct buffers of MovieSurface readback
+	public static final int COMPONENT_ALLOCATION = 2;		//	RenderScript Allocations
+	public static final int COMPONENT_BITMAP = 3;			//	bitmaps of BitmapPool
+	public static final int COMPONENT_COUNT = 4;
+
+	private static final String[] NAMES = { "yuvPayload", "pixelBuffer", "allocation", "bitmap" };
+
+	private static MediaMemoryBudget me;
+
+	private final long[] usage;
+
+	private long limit, total, reserved, peak;
+
+	private MediaMemoryBudget(long limit) {
+		this.limit = limit;
+		usage = new long[COMPONENT_COUNT];
+	}
+
+	/**
+	 *	Returns the budget shared in the process. The limit is the half of the Java heap by default.
+	 */
+	@NonNull
+	public static synchronized MediaMemoryBudget getInstance() {
+		if (me == null) {
+			me = new MediaMemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+		}
+		return me;
+	}
+
+	@AnyThread
+	public synchronized void setLimit(long bytes) {
+		limit = bytes;
+		notifyAll();
+	}
+
+	@AnyThread
+	public synchronized long getLimit() {
+		return limit;
+	}
+
+	/**
+	 *	Reserves <tt>bytes</tt>, blocks while it exceeds the limit up to <tt>msecTimeout</tt>.
+	 *	A request bigger than the limit is granted when nothing else is reserved.
+	 *
+	 *	@return false if the time is out, nothing is reserved then
+	 */
+	@WorkerThread
+	public synchronized boolean acquire(int component, long bytes, long msecTimeout) throws InterruptedException {
+		long deadline = System.nanoTime() + msecTimeout * 1000000;
+		while (!fits(bytes)) {
+			long msec = (deadline - System.nanoTime()) / 1000000;
+			if (msec <= 0) {
+				return false;
+			}
+			wait(msec);
+		}
+		reserved += bytes;
+		add(component, bytes);
+		return true;
+	}
+
+	/**
+	 *	Reserves <tt>bytes</tt> if it fits in the limit.
+	 */
+	@AnyThread
+	public synchronized boolean tryAcquire(int component, long bytes) {
+		if (!fits(bytes)) {
+			return false;
+		}
+		reserved += bytes;
+		add(component, bytes);
+		return true;
+	}
+
+	/**
+	 *	Reserves <tt>bytes</tt> if it fits in the limit, otherwise charges them for a resource which can not wait.
+	 *
+	 *	@return true if reserved, the caller should not pool the resource otherwise. Pass it to {@link #release(int, long, boolean)}
+	 */
+	@AnyThread
+	public synchronized boolean tryAcquireOrCharge(int component, long bytes) {
+		if (tryAcquire(component, bytes)) {
+			return true;
+		}
+		add(component, bytes);
+		return false;
+	}
+
+	/**
+	 *	Accounts <tt>bytes</tt> of a resource which can not wait without blocking, it is not limited.
+	 */
+	@AnyThread
+	public synchronized void charge(int component, long bytes) {
+		add(component, bytes);
+	}
+
+	/**
+	 *	Releases <tt>bytes</tt> reserved by {@link #acquire(int, long, long)} or {@link #tryAcquire(int, long)}.
+	 */
+	@AnyThread
+	public synchronized void release(int component, long bytes) {
+		usage[component] -= bytes;
+		total -= bytes;
+		reserved -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 *	Releases <tt>bytes</tt> accounted by {@link #tryAcquireOrCharge(int, long)}.
+	 */
+	@AnyThread
+	public synchronized void release(int component, long bytes, boolean acquired) {
+		if (acquired) {
+			release(component, bytes);
+		} else {
+			discharge(component, bytes);
+		}
+	}
+
+	/**
+	 *	Releases <tt>bytes</tt> accounted by {@link #charge(int, long)}.
+	 */
+	@AnyThread
+	public synchronized void discharge(int component, long bytes) {
+		usage[component] -= bytes;
+		total -= bytes;
+	}
+
+	private boolean fits(long bytes) {
+		return reserved + bytes <= limit || reserved == 0;
+	}
+
+	private void add(int component, long bytes) {
+		usage[component] += bytes;
+		total += bytes;
+		peak = Math.max(peak, total);
+	}
+
+	/**
+	 *	Returns the bytes reserved by the component.
+	 */
+	@AnyThread
+	public synchronized long getUsage(int component) {
+		return usage[component];
+	}
+
+	@AnyThread
+	public synchronized long getUsage() {
+		return total;
+	}
+
+	/**
+	 *	Returns the bytes reserved by the producers, which is limited.
+	 */
+	@AnyThread
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	@AnyThread
+	public synchronized long getPeak() {
+		return peak;
+	}
+
+	@NonNull
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "total:%.1fMB reserved:%.1fMB peak:%.1fMB limit:%.1fMB", total / 1048576.0, reserved / 1048576.0, peak / 1048576.0, limit / 1048576.0));
+		for (int i = 0; i < COMPONENT_COUNT; i++) {
+			sb.append(String.format(Locale.US, " %s:%.1fMB", NAMES[i], usage[i] / 1048576.0));
+		}
+		return sb.toString();
+	}
+}
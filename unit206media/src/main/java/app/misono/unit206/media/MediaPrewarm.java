@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import app.misono.unit206.task.Taskz;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.concurrent.Executor;
+
+/**
+ *	Moves the one-time setup of this library off the critical path: the RenderScript context of
+ *	{@link Yuv420ConverterPool}, the codec ranking of {@link CodecSelector} and the encoder color format,
+ *	the EGL display and root context of {@link EglManager}, and the timer thread of {@link JasaTimer}.
+ *	Call it e.g. in Application.onCreate(), the first encoder or decoder then starts without the setup.
+ */
+public final class MediaPrewarm {
+	private static final String TAG = "MediaPrewarm";
+
+	private static Task<Void> task;
+
+	private MediaPrewarm() {
+	}
+
+	/**
+	 *	Starts the setup in <tt>executor</tt>. Returns the same task when called again unless it has failed.
+	 */
+	@AnyThread
+	@NonNull
+	public static synchronized Task<Void> prewarm(@NonNull Context ctx, @NonNull Executor executor) {
+		if (task == null) {
+			Context app = ctx.getApplicationContext();
+			task = Taskz.call(executor, () -> {
+				long t0 = System.nanoTime();
+				JasaTimer.getInstance();
+				DecoderPool.getInstance();
+				CodecSelector.getDecoders(VideoEncoderParams.MIME_AVC, 0, 0);
+				MediaColorFormat.getEncoderColorFormat(VideoEncoderParams.MIME_AVC);
+				Yuv420ConverterPool.getInstance(app);
+				if (17 <= Build.VERSION.SDK_INT) {
+					EglManager.getInstance();
+				}
+				Log.i(TAG, "prewarm:" + (System.nanoTime() - t0) / 1000000 + "msec");
+				return null;
+			});
+			Task<Void> started = task;
+			started.addOnCompleteListener(Runnable::run, t -> {
+				if (!t.isSuccessful()) {
+					forget(started);
+				}
+			});
+		}
+		return task;
+	}
+
+	/**
+	 *	Drops the failed task, the next prewarm() tries again.
+	 */
+	private static synchronized void forget(Task<Void> failed) {
+		if (task == failed) {
+			task = null;
+		}
+	}
+}
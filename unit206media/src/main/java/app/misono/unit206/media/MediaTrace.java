@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.os.Build;
+import android.os.Trace;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ *	Trace sections around the hot paths of this library, into android.os.Trace (systrace, Perfetto)
+ *	and into a {@link TraceRecorder} if recording. Sections nest per thread, a section without a frame id
+ *	takes the frame id of the enclosing section, so a frame can be followed across the pipeline.
+ *	Costs one volatile read until it is enabled first. Each section records whether it is traced,
+ *	so end() always balances its begin() even if it is enabled or disabled in between.
+ */
+public final class MediaTrace {
+	private static final int MAX_DEPTH = 32;
+
+	private static final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+		@Override
+		protected Stack initialValue() {
+			return new Stack();
+		}
+	};
+
+	private static volatile boolean enabled, systrace, used;
+	private static volatile TraceRecorder recorder;
+
+	private MediaTrace() {
+	}
+
+	/**
+	 *	Enables the sections into android.os.Trace.
+	 */
+	@AnyThread
+	public static void setEnabled(boolean enable) {
+		systrace = enable;
+		if (enable) {
+			used = true;
+		}
+		enabled = enable || recorder != null;
+	}
+
+	/**
+	 *	Starts recording the sections into a new ring of <tt>capacity</tt> events.
+	 */
+	@AnyThread
+	@NonNull
+	public static TraceRecorder startRecording(int capacity) {
+		TraceRecorder rc = new TraceRecorder(capacity);
+		recorder = rc;
+		used = true;
+		enabled = true;
+		return rc;
+	}
+
+	/**
+	 *	Stops recording, returns the recorder to export.
+	 */
+	@AnyThread
+	@Nullable
+	public static TraceRecorder stopRecording() {
+		TraceRecorder rc = recorder;
+		recorder = null;
+		enabled = systrace;
+		return rc;
+	}
+
+	/**
+	 *	Begins a section of the current frame.
+	 */
+	public static void begin(@NonNull String name) {
+		if (used) {
+			Stack s = stacks.get();
+			int depth = Math.min(s.depth, MAX_DEPTH);
+			push(s, name, 0 < depth ? s.frames[depth - 1] : -1);
+		}
+	}
+
+	/**
+	 *	Begins a section of the frame, e.g. the presentation time in microseconds.
+	 */
+	public static void begin(@NonNull String name, long frame) {
+		if (used) {
+			push(stacks.get(), name, frame);
+		}
+	}
+
+	/**
+	 *	Pushes the section even while disabled, to be popped by its end(). Deeper than MAX_DEPTH is not traced.
+	 */
+	private static void push(Stack s, String name, long frame) {
+		if (s.depth < MAX_DEPTH) {
+			boolean traced = enabled;
+			s.names[s.depth] = name;
+			s.frames[s.depth] = frame;
+			s.starts[s.depth] = traced ? System.nanoTime() : 0;
+			s.traced[s.depth] = traced;
+			if (traced && 18 <= Build.VERSION.SDK_INT) {
+				Trace.beginSection(frame < 0 ? name : name + " #" + frame);
+			}
+		}
+		s.depth++;
+	}
+
+	/**
+	 *	Returns the frame id of the innermost section of the current thread, -1 for none.
+	 *	Pass it to {@link #begin(String, long)} in another thread to follow the frame.
+	 */
+	public static long getFrame() {
+		if (enabled) {
+			Stack s = stacks.get();
+			int depth = Math.min(s.depth, MAX_DEPTH);
+			if (0 < depth) return s.frames[depth - 1];
+		}
+		return -1;
+	}
+
+	/**
+	 *	Ends the last section begun in the current thread.
+	 */
+	public static void end() {
+		if (used) {
+			Stack s = stacks.get();
+			if (s.depth == 0) return;
+			s.depth--;
+			if (MAX_DEPTH <= s.depth || !s.traced[s.depth]) return;
+			if (18 <= Build.VERSION.SDK_INT) {
+				Trace.endSection();
+			}
+			TraceRecorder r = recorder;
+			if (r != null) {
+				r.record(s.names[s.depth], s.frames[s.depth], s.starts[s.depth], System.nanoTime());
+			}
+		}
+	}
+
+	private static final class Stack {
+		private final String[] names = new String[MAX_DEPTH];
+		private final long[] frames = new long[MAX_DEPTH];
+		private final long[] starts = new long[MAX_DEPTH];
+		private final boolean[] traced = new boolean[MAX_DEPTH];
+		private int depth;
+	}
+}
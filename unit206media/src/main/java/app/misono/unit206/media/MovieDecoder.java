@@ -48,18 +48,22 @@ import java.util.concurrent.Executors;
 @RequiresApi(18)
 public final class MovieDecoder implements Closeable {
 	private static final String	TAG = "MovieDecoder";
+	private static final Executor EXECUTOR = Executors.newCachedThreadPool();
 
 	private final OnVideoInfo onVideo;
 	private final OnDecoded onDecoded;
+	private final FramePacer pacer;
 	private final Executor executor;
 	private final Params params;
 
 	private MediaExtractor extractor;
 	private MediaDecoder decoder;
+	private DecoderPool pool;
+	private OnDecodedFrame onFrame;
+	private BitmapPool bitmaps;
 	private Throwable throwable;
 	private Bitmap bitmap;
 	private boolean realtime;
-	private long tickStart;
 
 	private MovieDecoder(
 		@Nullable Params params,
@@ -69,8 +73,9 @@ public final class MovieDecoder implements Closeable {
 		this.params = params != null ? params : new Params();
 		this.onVideo = onVideo;
 		this.onDecoded = onDecoded;
-		executor = Executors.newCachedThreadPool();
+		executor = EXECUTOR;
 		extractor = new MediaExtractor();
+		pacer = new FramePacer();
 	}
 
 	/**
@@ -160,10 +165,48 @@ public final class MovieDecoder implements Closeable {
 		extractor.setDataSource(context, uri, headers);
 	}
 
+	/**
+	 *	Paces frames to their presentation time. Frames which are already late are dropped without readback.
+	 */
 	public void setRealtimeMode(boolean realtime) {
 		this.realtime = realtime;
 	}
 
+	/**
+	 *	Hands frames in a pool of <tt>poolSize</tt> bitmaps to <tt>onFrame</tt> instead of the OnDecoded of the constructor.
+	 *	The consumer calls PooledBitmap.retain() to process a frame asynchronously, and release() when done.
+	 *	The decoder waits only while every bitmap is retained.
+	 */
+	public void setOnDecodedFrame(@Nullable OnDecodedFrame onFrame, int poolSize) {
+		this.onFrame = onFrame;
+		if (bitmaps != null) {
+			bitmaps.close();
+		}
+		bitmaps = onFrame != null ? new BitmapPool(poolSize) : null;
+	}
+
+	/**
+	 *	Borrows the decoder from the pool instead of creating a new one for this movie.
+	 */
+	public void setDecoderPool(@Nullable DecoderPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 *	Sets the playback rate multiplier of the realtime mode.
+	 */
+	public void setPlaybackRate(double rate) {
+		pacer.setRate(rate);
+	}
+
+	/**
+	 *	Returns the pacer of the realtime mode, for its jitter and dropped frames.
+	 */
+	@NonNull
+	public FramePacer getPacer() {
+		return pacer;
+	}
+
 	@AnyThread
 	@NonNull
 	public Task<Void> startTask(@Nullable CancellationToken cancel) {
@@ -200,11 +243,14 @@ public final class MovieDecoder implements Closeable {
 			decoder.finish();
 			decoder = null;
 		}
+		if (bitmaps != null) {
+			bitmaps.close();
+		}
 	}
 
 	@WorkerThread
 	private void decodeVideo() throws Exception {
-		tickStart = 0;
+		pacer.reset();
 		decoder = new MediaDecoder(extractor, params.dec, new MediaDecoder.Callback() {
 			@Override
 			public void decoded(@NonNull MediaDecoder dec, int frameNo, MediaCodec.BufferInfo info) {
@@ -213,22 +259,19 @@ public final class MovieDecoder implements Closeable {
 					dec.finish();
 				} else {
 					if (realtime) {
-						long now = System.currentTimeMillis();
-						if (tickStart == 0) {
-							tickStart = now;
-						} else {
-							long sleep = msec - (now - tickStart);
-							if (0 < sleep) {
-								try {
-									Thread.sleep(sleep);
-								} catch (InterruptedException e) {
-									// nop
-								}
-							}
+						try {
+							if (!pacer.await(info.presentationTimeUs)) return;
+						} catch (InterruptedException e) {
+							// nop
 						}
 					}
-					bitmap = dec.getBitmap(bitmap);
-					onDecoded.decoded(bitmap, info.presentationTimeUs);
+					OnDecodedFrame frameConsumer = onFrame;
+					if (frameConsumer != null) {
+						decodedFrame(dec, frameConsumer, info.presentationTimeUs);
+					} else {
+						bitmap = dec.getBitmap(bitmap);
+						onDecoded.decoded(bitmap, info.presentationTimeUs);
+					}
 				}
 			}
 
@@ -240,9 +283,31 @@ public final class MovieDecoder implements Closeable {
 				}
 			}
 		});
+		decoder.setDecoderPool(pool);
 		Tasks.await(decoder.startTask());
 	}
 
+	@WorkerThread
+	private void decodedFrame(MediaDecoder dec, OnDecodedFrame frameConsumer, long usec) {
+		BitmapPool.PooledBitmap frame;
+		try {
+			frame = bitmaps.acquire();
+		} catch (InterruptedException | IllegalStateException e) {
+			//	interrupted or closed
+			dec.finish();
+			return;
+		}
+		try {
+			Bitmap bmp = dec.getBitmap(frame.getBitmap());
+			if (bmp != null) {
+				frame.setBitmap(bmp);
+				frameConsumer.decoded(frame, usec);
+			}
+		} finally {
+			frame.release();
+		}
+	}
+
 	private void setThrowable(Throwable e) {
 if (e != null) e.printStackTrace();
 		if (throwable == null) {
@@ -262,6 +327,14 @@ if (e != null) e.printStackTrace();
 		void decoded(@NonNull Bitmap bitmap, long usec);
 	}
 
+	public interface OnDecodedFrame {
+		/**
+		 *	The frame is reused after returning unless it is retained.
+		 */
+		@WorkerThread
+		void decoded(@NonNull BitmapPool.PooledBitmap frame, long usec);
+	}
+
 	public static final class Params {
 		public MediaDecoder.Params dec;
 
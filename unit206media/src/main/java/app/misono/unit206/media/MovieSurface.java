@@ -17,9 +17,9 @@
 package app.misono.unit206.media;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
-import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
 import android.opengl.EGLSurface;
@@ -28,11 +28,12 @@ import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -100,8 +101,7 @@ public final class MovieSurface {
 			}
 		});
 		surface = new Surface(surfaceTexture);
-		pixelBuf = ByteBuffer.allocateDirect(width * height * 4);
-		pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+		pixelBuf = EglManager.getInstance().obtainPixelBuffer(width * height * 4);
 	}
 
 	public SurfaceTexture getSurfaceTexture() {
@@ -109,65 +109,39 @@ public final class MovieSurface {
 	}
 
 	private void eglSetup() {
-		final int[]	attribList1 = {
-			EGL14.EGL_RED_SIZE, 8,
-			EGL14.EGL_GREEN_SIZE, 8,
-			EGL14.EGL_BLUE_SIZE, 8,
-			EGL14.EGL_ALPHA_SIZE, 8,
-			EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-			EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
-			EGL14.EGL_NONE
-		};
-	    final int[]	attribList2 = {
-			EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-			EGL14.EGL_NONE
-	    };
-		final int[]	surfaceAttribs = {
-			EGL14.EGL_WIDTH, width,
-			EGL14.EGL_HEIGHT, height,
-			EGL14.EGL_NONE
-		};
-
-		eglDisplay	= EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
-		if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
-			throw new RuntimeException("unable to get EGL14 display");
-		}
-		int [] version = new int[2];
-		if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
-			eglDisplay	= null;
-			throw new RuntimeException("unable to initialize EGL14");
-		}
-
-		EGLConfig[] configs = new EGLConfig[1];
-		int [] numConfigs = new int[1];
-		if (!EGL14.eglChooseConfig(eglDisplay, attribList1, 0, configs, 0, configs.length, numConfigs, 0)) {
-			throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
-		}
-
-		eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, attribList2, 0);
-		checkEglError("eglCreateContext");
-		if (eglContext == null) {
-			throw new RuntimeException("null context");
-		}
-
-		eglSurface	= EGL14.eglCreatePbufferSurface(eglDisplay, configs[0], surfaceAttribs, 0);
-		checkEglError("eglCreatePbufferSurface");
-		if (eglSurface == null) {
-			throw new RuntimeException("surface was null");
-		}
+		EglManager mgr = EglManager.getInstance();
+		eglDisplay = mgr.getDisplay();
+		eglContext = mgr.createContext();
+		eglSurface = mgr.obtainPbuffer(width, height);
 	}
 
+	/**
+	 *	Returns the EGL objects to EglManager. The display is shared and is not terminated.
+	 */
 	public void release() {
 		if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
-			EGL14.eglDestroySurface(eglDisplay, eglSurface);
-			EGL14.eglDestroyContext(eglDisplay, eglContext);
+			EglManager mgr = EglManager.getInstance();
+			if (textureRender != null) {
+				textureRender.release();
+			}
+			EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+			mgr.recyclePbuffer(width, height, eglSurface);
+			mgr.destroyContext(eglContext);
 			EGL14.eglReleaseThread();
-			EGL14.eglTerminate(eglDisplay);
+			if (pixelBuf != null) {
+				mgr.recyclePixelBuffer(pixelBuf);
+				pixelBuf = null;
+			}
+		}
+		if (surface != null) {
+			surface.release();
+			surface = null;
+		}
+		if (surfaceTexture != null) {
+			surfaceTexture.release();
+			surfaceTexture = null;
 		}
-		surface.release();
-		surface = null;
 		textureRender = null;
-		surfaceTexture = null;
 		eglDisplay = EGL14.EGL_NO_DISPLAY;
 		eglContext = EGL14.EGL_NO_CONTEXT;
 		eglSurface = EGL14.EGL_NO_SURFACE;
@@ -184,21 +158,60 @@ public final class MovieSurface {
 	}
 
 	public void awaitNewImage() throws InterruptedException {
-		if (lock != null) {
-			lock.lock();
-			if (!frameAvailable) {
-				available.await();
+		MediaTrace.begin("MovieSurface.awaitNewImage");
+		try {
+			if (lock != null) {
+				lock.lock();
+				if (!frameAvailable) {
+					available.await();
+				}
+				notAvailable.signal();
+				frameAvailable = false;
+				lock.unlock();
 			}
-			notAvailable.signal();
-			frameAvailable = false;
-			lock.unlock();
+			GlUtil.checkGlError("before updateTexImage");
+			surfaceTexture.updateTexImage();
+		} finally {
+			MediaTrace.end();
 		}
-		textureRender.checkGlError("before updateTexImage");
-		surfaceTexture.updateTexImage();
 	}
 
 	public void drawImage(boolean invert) {
-		textureRender.drawFrame(surfaceTexture, invert);
+		MediaTrace.begin("MovieSurface.drawImage");
+		try {
+			textureRender.drawFrame(surfaceTexture, invert);
+		} finally {
+			MediaTrace.end();
+		}
+	}
+
+	/**
+	 *	Draws the current frame into the <tt>viewport</tt> rectangle only, e.g. a tile of a mosaic.
+	 *	The rest of the framebuffer is kept unless <tt>clear</tt> is true, which clears all of it to black first.
+	 *
+	 *	@param viewport	in the coordinates of getBitmap(Bitmap) when <tt>invert</tt> is true
+	 */
+	public void drawImage(boolean invert, @NonNull Rect viewport, boolean clear) {
+		MediaTrace.begin("MovieSurface.drawImage");
+		try {
+			if (clear) {
+				GLES10.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+				GLES10.glClear(GLES10.GL_COLOR_BUFFER_BIT);
+			}
+			GLES10.glViewport(viewport.left, viewport.top, viewport.width(), viewport.height());
+			textureRender.drawFrame(surfaceTexture, invert, null, false);
+			GLES10.glViewport(0, 0, width, height);
+		} finally {
+			MediaTrace.end();
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
 	}
 
 	public byte[] getJpeg(int quality) {
@@ -216,34 +229,86 @@ public final class MovieSurface {
 		if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
 			throw new RuntimeException("Bitmap.Config is not ARGB_8888...");
 		}
-		GLES10.glReadPixels(0, 0, width, height, GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, pixelBuf);
+		MediaTrace.begin("MovieSurface.getBitmap");
+		try {
+			GLES10.glReadPixels(0, 0, width, height, GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, pixelBuf);
+			pixelBuf.rewind();
+			bitmap.copyPixelsFromBuffer(pixelBuf);
+		} finally {
+			MediaTrace.end();
+		}
+		return bitmap;
+	}
+
+	/**
+	 *	Draws only the <tt>crop</tt> rectangle of the current frame scaled into <tt>outWidth</tt> x <tt>outHeight</tt>,
+	 *	and reads back only that area. Call it after awaitNewImage(), the GPU to CPU transfer is proportional
+	 *	to the output size. The framebuffer holds the region afterwards, call drawImage() again before getBitmap(Bitmap).
+	 *
+	 *	@param crop		in the coordinates of getBitmap(Bitmap), null for the whole frame
+	 *	@param outWidth	0 for the width of crop, at most the width of this surface
+	 *	@throws IllegalArgumentException	if crop is empty or not inside the surface, or the output is bigger than it
+	 */
+	public Bitmap getBitmap(@Nullable Bitmap bitmap, @Nullable Rect crop, int outWidth, int outHeight) {
+		Rect r = crop != null ? crop : new Rect(0, 0, width, height);
+		int w = outWidth != 0 ? outWidth : r.width();
+		int h = outHeight != 0 ? outHeight : r.height();
+		checkRegion(r, w, h);
+		if (bitmap == null || bitmap.getWidth() != w || bitmap.getHeight() != h) {
+			bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+		}
+		if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+			throw new RuntimeException("Bitmap.Config is not ARGB_8888...");
+		}
+		pixelBuf.rewind();
+		getPixels(pixelBuf, r, w, h);
 		pixelBuf.rewind();
 		bitmap.copyPixelsFromBuffer(pixelBuf);
 		return bitmap;
 	}
 
-	private void checkEglError(String msg) {
-		int error = EGL14.eglGetError();
-		if (error != EGL14.EGL_SUCCESS) {
-			throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
+	/**
+	 *	Same as {@link #getBitmap(Bitmap, Rect, int, int)} into RGBA bytes of <tt>rgba</tt>, rows from the top.
+	 *
+	 *	@param rgba	a direct buffer of outWidth * outHeight * 4 bytes remaining at least
+	 *	@throws IllegalArgumentException	if crop is empty or not inside the surface, the output is bigger than it, or rgba is short
+	 */
+	public void getPixels(@NonNull ByteBuffer rgba, @Nullable Rect crop, int outWidth, int outHeight) {
+		Rect r = crop != null ? crop : new Rect(0, 0, width, height);
+		int w = outWidth != 0 ? outWidth : r.width();
+		int h = outHeight != 0 ? outHeight : r.height();
+		checkRegion(r, w, h);
+		if (rgba.remaining() < w * h * 4) {
+			throw new IllegalArgumentException("rgba is short:" + rgba.remaining() + " < " + w + "x" + h + "x4");
+		}
+		MediaTrace.begin("MovieSurface.getPixels");
+		try {
+			float[] region = {
+				(float)r.left / width, (float)r.top / height, (float)r.width() / width, (float)r.height() / height,
+			};
+			GLES10.glViewport(0, 0, w, h);
+			textureRender.drawFrame(surfaceTexture, true, region, true);
+			GLES10.glReadPixels(0, 0, w, h, GLES10.GL_RGBA, GLES10.GL_UNSIGNED_BYTE, rgba);
+			GLES10.glViewport(0, 0, width, height);
+		} finally {
+			MediaTrace.end();
+		}
+	}
+
+	private void checkRegion(Rect r, int w, int h) {
+		if (r.left < 0 || r.top < 0 || r.right > width || r.bottom > height
+				|| r.left >= r.right || r.top >= r.bottom) {
+			throw new IllegalArgumentException("crop is out of the surface:" + r.left + "," + r.top + "-" + r.right + "," + r.bottom);
+		}
+		if (w <= 0 || h <= 0 || width < w || height < h) {
+			throw new IllegalArgumentException("output is out of the surface:" + w + "x" + h);
 		}
 	}
 
 	private static final class STextureRender {
-		private static final int FLOAT_SIZE_BYTES = 4;
-		private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
-		private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-		private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
-		private static final String VERTEX_SHADER =
-			"uniform mat4 uMVPMatrix;\n"							+
-			"uniform mat4 uSTMatrix;\n"								+
-			"attribute vec4 aPosition;\n"							+
-			"attribute vec4 aTextureCoord;\n"						+
-			"varying vec2 vTextureCoord;\n"							+
-			"void main() {\n"										+
-			" gl_Position = uMVPMatrix * aPosition;\n"				+
-			" vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n"	+
-			"}\n";
+		private static final Object LOCK = new Object();				//	guards the shared shader objects
+		private static int sharedVertex, sharedFragment;
+
 		private static final String FRAGMENT_SHADER =
 			"#extension GL_OES_EGL_image_external : require\n"		+
 			"precision mediump float;\n"							+
@@ -252,26 +317,18 @@ public final class MovieSurface {
 			"void main() {\n"										+
 			" gl_FragColor = texture2D(sTexture, vTextureCoord);\n"	+
 			"}\n";
-		private final float[] triangleVerticesData = {
-			// X, Y, Z, U, V
-			-1.0f, -1.0f, 0, 0.f, 0.f,
-			 1.0f, -1.0f, 0, 1.f, 0.f,
-			-1.0f,  1.0f, 0, 0.f, 1.f,
-			 1.0f,  1.0f, 0, 1.f, 1.f,
-		};
-	
+
 		private final FloatBuffer triangleVertices;
-		private final float[] mvpMatrix, stMatrix;
+		private final float[] mvpMatrix, stMatrix, regionMatrix, tmpMatrix;
 
 		private int textureID, program, umvpMatrixHandle, ustMatrixHandle, aPositionHandle, aTextureHandle;
 	
 		private STextureRender() {
 			mvpMatrix = new float[16];
 			stMatrix = new float[16];
-			triangleVertices = ByteBuffer.allocateDirect(triangleVerticesData.length * FLOAT_SIZE_BYTES)
-				.order(ByteOrder.nativeOrder())
-				.asFloatBuffer();
-			triangleVertices.put(triangleVerticesData).position(0);
+			regionMatrix = new float[16];
+			tmpMatrix = new float[16];
+			triangleVertices = GlUtil.newQuad();
 			android.opengl.Matrix.setIdentityM(stMatrix, 0);
 		}
 	
@@ -280,121 +337,99 @@ public final class MovieSurface {
 		}
 	
 		private void drawFrame(SurfaceTexture st, boolean invert) {
-			checkGlError("onDrawFrame start");
+			drawFrame(st, invert, null, true);
+		}
+
+		/**
+		 *	@param region	{ left, top, width, height } of the frame in 0..1 drawn into the whole viewport, or null
+		 *	@param clear	false to keep the framebuffer outside of the viewport
+		 */
+		private void drawFrame(SurfaceTexture st, boolean invert, float[] region, boolean clear) {
+			GlUtil.checkGlError("onDrawFrame start");
 			st.getTransformMatrix(stMatrix);
 			if (invert) {
 				stMatrix[5] = -stMatrix[5];
 				stMatrix[13] = 1.0f - stMatrix[13];
 			}
+			if (region != null) {
+				android.opengl.Matrix.setIdentityM(regionMatrix, 0);
+				android.opengl.Matrix.translateM(regionMatrix, 0, region[0], region[1], 0);
+				android.opengl.Matrix.scaleM(regionMatrix, 0, region[2], region[3], 1);
+				android.opengl.Matrix.multiplyMM(tmpMatrix, 0, stMatrix, 0, regionMatrix, 0);
+				System.arraycopy(tmpMatrix, 0, stMatrix, 0, 16);
+			}
 	
-			GLES10.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
-			GLES10.glClear(GLES10.GL_COLOR_BUFFER_BIT);
+			if (clear) {
+				GLES10.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
+				GLES10.glClear(GLES10.GL_COLOR_BUFFER_BIT);
+			}
 			GLES20.glUseProgram(program);
-			checkGlError("glUseProgram");
+			GlUtil.checkGlError("glUseProgram");
 	
 		    GLES10.glActiveTexture(GLES10.GL_TEXTURE0);
 		    GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureID);
-			triangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-			GLES20.glVertexAttribPointer(aPositionHandle, 3, GLES10.GL_FLOAT, false, TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-			checkGlError("glVertexAttribPointer maPosition");
-	
-			GLES20.glEnableVertexAttribArray(aPositionHandle);
-			checkGlError("glEnableVertexAttribArray maPositionHandle");
-	
-			triangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-			GLES20.glVertexAttribPointer(aTextureHandle, 2, GLES10.GL_FLOAT, false, TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-			checkGlError("glVertexAttribPointer maTextureHandle");
-	
-			GLES20.glEnableVertexAttribArray(aTextureHandle);
-			checkGlError("glEnableVertexAttribArray maTextureHandle");
+			GlUtil.bindQuad(triangleVertices, aPositionHandle, aTextureHandle);
 	
 			android.opengl.Matrix.setIdentityM(mvpMatrix, 0);
 			GLES20.glUniformMatrix4fv(umvpMatrixHandle, 1, false, mvpMatrix, 0);
 			GLES20.glUniformMatrix4fv(ustMatrixHandle, 1, false, stMatrix,  0);
 			GLES10.glDrawArrays(GLES10.GL_TRIANGLE_STRIP, 0, 4);
-			checkGlError("glDrawArrays");
+			GlUtil.checkGlError("glDrawArrays");
 	
 			GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
 		}
 	
+		/**
+		 *	The shaders are compiled once and shared by all contexts of EglManager, but each surface links
+		 *	its own program: uniform values belong to the program, a shared one would mix the matrices
+		 *	of surfaces drawn concurrently in other threads.
+		 */
 		private void surfaceCreated() {
-			program	= createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+			int vertex, fragment;
+			synchronized (LOCK) {
+				if (sharedVertex == 0) {
+					int v = GlUtil.loadShader(GLES20.GL_VERTEX_SHADER, GlUtil.VERTEX_SHADER);
+					int f = GlUtil.loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+					if (v == 0 || f == 0) {
+						throw new RuntimeException("failed compiling shaders");
+					}
+					sharedVertex = v;
+					sharedFragment = f;
+				}
+				vertex = sharedVertex;
+				fragment = sharedFragment;
+			}
+			program = GlUtil.linkProgram(vertex, fragment);
 			if (program == 0) {
 				throw new RuntimeException("failed creating program");
 			}
-	
 			aPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
-			checkLocation(aPositionHandle, "aPosition");
+			GlUtil.checkLocation(aPositionHandle, "aPosition");
 			aTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
-			checkLocation(aTextureHandle, "aTextureCoord");
+			GlUtil.checkLocation(aTextureHandle, "aTextureCoord");
 			umvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-			checkLocation(umvpMatrixHandle, "uMVPMatrix");
+			GlUtil.checkLocation(umvpMatrixHandle, "uMVPMatrix");
 			ustMatrixHandle = GLES20.glGetUniformLocation(program, "uSTMatrix");
-			checkLocation(ustMatrixHandle, "uSTMatrix");
+			GlUtil.checkLocation(ustMatrixHandle, "uSTMatrix");
 
 			int[] textures = new int[1];
 			GLES10.glGenTextures(1, textures, 0);
 	
 			textureID = textures[0];
 			GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureID);
-			checkGlError("glBindTexture mTextureID");
+			GlUtil.checkGlError("glBindTexture mTextureID");
 		
 			GLES10.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_NEAREST);
 			GLES10.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
 			GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_WRAP_S,     GLES10.GL_CLAMP_TO_EDGE);
 			GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_WRAP_T,     GLES10.GL_CLAMP_TO_EDGE);
-			checkGlError("glTexParameter");
-		}
-	
-		private int loadShader(int shaderType, String source) {
-			int shader = GLES20.glCreateShader(shaderType);
-			checkGlError("glCreateShader type=" + shaderType);
-	
-			GLES20.glShaderSource(shader, source);
-			GLES20.glCompileShader(shader);
-			int[] compiled = new int[1];
-			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-			if (compiled[0] == 0) {
-				GLES20.glDeleteShader(shader);
-				shader = 0;
-			}
-			return shader;
-		}
-		
-		private int createProgram(String vertexSource, String fragmentSource) {
-			int program = 0;
-			int vertexShader= loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-			if (vertexShader != 0) {
-				int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-				if (pixelShader != 0) {
-					program = GLES20.glCreateProgram();
-					GLES20.glAttachShader(program, vertexShader);
-					checkGlError("glAttachShader");
-					GLES20.glAttachShader(program, pixelShader);
-					checkGlError("glAttachShader");
-					GLES20.glLinkProgram(program);
-					int[] linkStatus = new int[1];
-					GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-					if (linkStatus[0] != GLES10.GL_TRUE) {
-						GLES20.glDeleteProgram(program);
-						program = 0;
-					}
-				}
-			}
-			return program;
+			GlUtil.checkGlError("glTexParameter");
 		}
 	
-		private void checkGlError(String op) {
-			int error = GLES10.glGetError();
-			if (error != GLES10.GL_NO_ERROR) {
-				throw new RuntimeException(op + ": glError " + error);
-			}
-		}
-	
-		private void checkLocation(int location, String label) {
-			if (location < 0) {
-				throw new RuntimeException("Unable to locate '" + label + "' in program");
-			}
+		private void release() {
+			GLES10.glDeleteTextures(1, new int[] { textureID }, 0);
+			GLES20.glDeleteProgram(program);
+			program = 0;
 		}
 	}
 
@@ -18,8 +18,8 @@ package app.misono.unit206.media;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.media.Image;
 import android.media.MediaFormat;
-import android.renderscript.RSInvalidStateException;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
@@ -35,29 +35,43 @@ import com.google.android.gms.tasks.Task;
 
 import java.io.Closeable;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- *	Creates a mp4 video(video/avc) file.
+ *	Creates a mp4 video file, video/avc by default or video/hevc, video/av01 by VideoEncoderParams.
  */
 public final class Mp4Encoder implements Closeable {
 	private static final String	TAG = "Mp4Encoder";
+	private static final int	FORMAT_UNRESOLVED = -1;
+	private static final long	MSEC_BUDGET = 10000;		//	waits for the budget before failing the input
 
+	private final MediaMemoryBudget budget;
+	private final Context ctx;
+	private final AtomicLong inFlight;
 	private final SingletonTask singleton;
 	private final Executor executor;
-	private final int yuv420color;
 
+	private volatile EncoderMetrics metrics;
+	private volatile int yuv420color;
 	private VideoEncoderParams params;
-	private Yuv420PlanarAlone yuv420;
-	private MediaEncoder encoder;
-	private Throwable throwable;
-	private int frames;
+	private volatile MediaEncoder encoder;
+	private volatile Throwable throwable;
+	private int frames, width, height;
 
+	/**
+	 *	Does no setup by itself, the converter and the codec are set up in the executor on the first use.
+	 *	See {@link MediaPrewarm} to set them up in advance.
+	 */
 	public Mp4Encoder(@NonNull Context ctx, @NonNull Executor executor) {
 		this.executor = executor;
 		singleton = new SingletonTask();
-		yuv420 = new Yuv420PlanarAlone(ctx);
-		yuv420color = MediaColorFormat.getYuv420ColorFormat(MediaColorFormat.getEncoderColorFormat());
+		this.ctx = ctx.getApplicationContext();
+		budget = MediaMemoryBudget.getInstance();
+		inFlight = new AtomicLong();
+		yuv420color = FORMAT_UNRESOLVED;
 	}
 
 	@AnyThread
@@ -69,28 +83,30 @@ public final class Mp4Encoder implements Closeable {
 		@NonNull File mp4
 	) {
 		this.params = params != null ? params : new VideoEncoderParams();
+		this.width = width;
+		this.height = height;
 		return Taskz.call(executor, () -> {
 			ThreadGate done = new ThreadGate();
 			encoder = new MediaEncoder(new MediaEncoder.Callback() {
 				@Override
 				public void done(MediaEncoder enc, int frames) {
 					Mp4Encoder.this.frames = frames;
-					new Thread(() -> {
-						enc.close();
-						done.open();
-					}).start();
+					new Thread(enc::close).start();
 				}
 
 				@Override
 				@WorkerThread
-				public void fatalError(MediaEncoder encoder, Throwable e) {
+				public void fatalError(MediaEncoder enc, Throwable e) {
 					Log2.e(TAG, "fatalError:");
 					e.printStackTrace();
+					throwable = e;
+					new Thread(enc::close).start();
 				}
 
 				@Override
 				@WorkerThread
-				public void canceled(MediaEncoder encoder) {
+				public void canceled(MediaEncoder enc) {
+					new Thread(enc::close).start();
 				}
 
 				/**
@@ -99,20 +115,29 @@ public final class Mp4Encoder implements Closeable {
 				@Override
 				@WorkerThread
 				public void recyclePayload(MediaEncoder encoder, byte[] payload) {
+					releasePayload(payload.length);
 				}
 
+				/**
+				 *	The encoder thread has finished, the payloads discarded in its mailbox are released here.
+				 */
 				@Override
 				@WorkerThread
 				public void closed(MediaEncoder encoder) {
+					releaseAllPayloads();
+					done.open();
 				}
 			});
-			MediaFormat fmt = MediaFormat.createVideoFormat(params.mimeType, width, height);
-			fmt.setInteger(MediaFormat.KEY_FRAME_RATE, params.fps);
-			fmt.setInteger(MediaFormat.KEY_BIT_RATE, params.bitRate);
-			fmt.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaColorFormat.getEncoderColorFormat());
-			fmt.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, params.intervalKeyFrame);
+			encoder.setMetrics(metrics);
+			MediaFormat fmt = MediaEncoder.createVideoFormat(width, height, this.params);
+			yuv420color = MediaColorFormat.getYuv420ColorFormat(fmt.getInteger(MediaFormat.KEY_COLOR_FORMAT));
+			throwable = null;
 			encoder.start(mp4.getAbsolutePath(), fmt);
-			done.block();
+			done.block();				//	opened by closed() after done(), fatalError() or canceled()
+			Throwable e = throwable;
+			if (e != null) {
+				throw e instanceof Exception ? (Exception)e : new RuntimeException(e);
+			}
 			return null;
 		});
 	}
@@ -120,13 +145,143 @@ public final class Mp4Encoder implements Closeable {
 	@AnyThread
 	@NonNull
 	public Task<Void> inputPayloadTask(@NonNull Bitmap bitmap, long usec) {
+		return inputTask(null, yuv -> Yuv420ConverterPool.getInstance(ctx).convert(yuv, bitmap, yuv420color), usec);
+	}
+
+	/**
+	 *	Converts ARGB pixels (0xAARRGGBB) of the encoder size on the CPU, without a Bitmap.
+	 *	<tt>argb</tt> must not be modified until the returned task completes.
+	 *
+	 *	@param offset	the index of the top-left pixel in argb
+	 *	@param stride	the number of pixels between rows in argb
+	 */
+	@AnyThread
+	@NonNull
+	public Task<Void> inputPayloadTask(@NonNull int[] argb, int offset, int stride, long usec) {
+		return inputTask(null, yuv -> Rgb2Yuv.convert(argb, offset, stride, width, height, yuv, yuv420color), usec);
+	}
+
+	/**
+	 *	Converts RGBA bytes of the encoder size, e.g. from glReadPixels() or a native renderer, without a Bitmap.
+	 *	<tt>rgba</tt> must not be modified until the returned task completes.
+	 *
+	 *	@param rowStride	the number of bytes between rows in rgba
+	 */
+	@AnyThread
+	@NonNull
+	public Task<Void> inputPayloadTask(@NonNull ByteBuffer rgba, int rowStride, long usec) {
+		return inputTask(null, yuv -> Rgb2Yuv.convert(rgba, rgba.position(), rowStride, width, height, yuv, yuv420color), usec);
+	}
+
+	/**
+	 *	Queues a pre-converted YUV420 payload in the layout of {@link #getYuvFormat()} without any conversion.
+	 *	<tt>yuv</tt> is owned by the encoder after this call.
+	 */
+	@AnyThread
+	@NonNull
+	public Task<Void> inputYuvTask(@NonNull byte[] yuv, long usec) {
+		return inputTask(yuv, null, usec);
+	}
+
+	/**
+	 *	Queues a YUV_420_888 image of the encoder size, e.g. from a camera.
+	 *	The image must not be closed until the returned task completes.
+	 */
+	@AnyThread
+	@NonNull
+	public Task<Void> inputYuvTask(@NonNull Image image, long usec) {
+		return inputTask(null, yuv -> {
+			if (image.getWidth() != width || image.getHeight() != height) {
+				throw new IllegalArgumentException("image size is not " + width + "x" + height);
+			}
+			Yuv420Image.copy(image, yuv, yuv420color);
+		}, usec);
+	}
+
+	/**
+	 *	Reserves the payload in {@link MediaMemoryBudget}, blocking while it is exhausted up to MSEC_BUDGET,
+	 *	fills it and queues it into the encoder. The reservation is released in recyclePayload(),
+	 *	or in closed() if the encoder is closed before.
+	 *
+	 *	@param given	the payload of the caller, or null to allocate it
+	 */
+	private Task<Void> inputTask(@Nullable byte[] given, @Nullable Fill fill, long usec) {
 		return singleton.call(executor, () -> {
-			byte[] yuv = yuv420.convert(bitmap, yuv420color);
-			encoder.inputPayload(yuv, usec);
+			int size = Rgb2Yuv.yuvSize(width, height);
+			if (given != null && given.length != size) {
+				throw new IllegalArgumentException("yuv size is not " + width + "x" + height);
+			}
+			MediaTrace.begin("Mp4Encoder.input", usec);
+			try {
+				if (!budget.acquire(MediaMemoryBudget.COMPONENT_YUV_PAYLOAD, size, MSEC_BUDGET)) {
+					throw new TimeoutException("MediaMemoryBudget is exhausted:" + budget);
+				}
+				inFlight.addAndGet(size);
+				try {
+					byte[] yuv = given != null ? given : new byte[size];
+					if (fill != null) {
+						EncoderMetrics m = metrics;
+						long t0 = m != null ? System.nanoTime() : 0;
+						fill.fill(yuv);
+						if (m != null) {
+							m.stage(EncoderMetrics.STAGE_CONVERT, System.nanoTime() - t0);
+						}
+					}
+					encoder.inputPayload(yuv, usec);
+				} catch (Exception e) {
+					releasePayload(size);
+					throw e;
+				}
+			} finally {
+				MediaTrace.end();
+			}
 			return null;
 		});
 	}
 
+	private void releasePayload(long bytes) {
+		inFlight.addAndGet(-bytes);
+		budget.release(MediaMemoryBudget.COMPONENT_YUV_PAYLOAD, bytes);
+	}
+
+	private void releaseAllPayloads() {
+		long bytes = inFlight.getAndSet(0);
+		if (bytes != 0) {
+			budget.release(MediaMemoryBudget.COMPONENT_YUV_PAYLOAD, bytes);
+		}
+	}
+
+	private interface Fill {
+		void fill(byte[] yuv) throws Exception;
+	}
+
+	/**
+	 *	Returns the YUV420 layout of the encoder input, one of Rgb2Yuv.FORMAT_*.
+	 *	It is decided by the codec in {@link #startTask(int, int, VideoEncoderParams, File)}.
+	 *	@throws IllegalStateException	if the codec has not been decided yet
+	 */
+	@AnyThread
+	public int getYuvFormat() {
+		int format = yuv420color;
+		if (format == FORMAT_UNRESOLVED) {
+			throw new IllegalStateException("the yuv format is not resolved yet...");
+		}
+		return format;
+	}
+
+	/**
+	 *	Sets the listener of per-frame latencies, e.g. {@link EncoderHistograms}, or null to stop measuring.
+	 *	Call it before {@link #startTask(int, int, VideoEncoderParams, File)} to measure every stage.
+	 */
+	@AnyThread
+	public void setMetrics(@Nullable EncoderMetrics metrics) {
+		this.metrics = metrics;
+		MediaEncoder enc = encoder;
+		if (enc != null) {
+			enc.setMetrics(metrics);
+		}
+	}
+
 	@AnyThread
 	@NonNull
 	public Task<Void> endOfPayloadTask() {
@@ -136,15 +291,17 @@ public final class Mp4Encoder implements Closeable {
 		});
 	}
 
+	/**
+	 *	The converter is shared with other encoders, see {@link Yuv420ConverterPool#trim()} to release it.
+	 *	The payloads in flight are released when the encoder thread has finished.
+	 */
 	@Override
 	public void close() {
-		if (yuv420 != null) {
-			try {
-				yuv420.close();
-			} catch (RSInvalidStateException e) {
-				// nop
-			}
-			yuv420 = null;
+		MediaEncoder enc = encoder;
+		if (enc != null) {
+			enc.close();
+		} else {
+			releaseAllPayloads();
 		}
 	}
 
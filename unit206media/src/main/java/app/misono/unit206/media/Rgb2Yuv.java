@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ *	Converts ARGB pixels to YUV420Planar or YUV420SemiPlanar on the CPU.
+ *	It is the plain Java version of rgb2yuv.rs, chroma is sampled from the top-left pixel of each 2x2 block.
+ */
+public final class Rgb2Yuv {
+	public static final int	FORMAT_IYUV	= 0;				//	YYYYYYYY UU VV	YUV420p
+	public static final int	FORMAT_YV12	= 1;				//	YYYYYYYY VV UU	YUV420p
+	public static final int	FORMAT_NV12	= 2;				//	YYYYYYYY UVUV	YUV420sp
+	public static final int	FORMAT_NV21	= 3;				//	YYYYYYYY VUVU	YUV420sp
+
+	private Rgb2Yuv() {
+	}
+
+	/**
+	 *	Returns the byte size of YUV420 with the specified width and height.
+	 */
+	public static int yuvSize(int width, int height) {
+		return width * height * 3 / 2;
+	}
+
+	/**
+	 *	Converts <tt>width</tt> x <tt>height</tt> pixels of <tt>argb</tt> (0xAARRGGBB) into <tt>yuv</tt>.
+	 *
+	 *	@param offset	the index of the top-left pixel in argb
+	 *	@param stride	the number of pixels between rows in argb
+	 */
+	public static void convert(int[] argb, int offset, int stride, int width, int height, byte[] yuv, int format) {
+		int[] planes = planes(width, height, format);
+		int uOffset = planes[0];
+		int vOffset = planes[1];
+		int uvStep = planes[2];
+		int yy = 0;
+		for (int y = 0; y < height; y++) {
+			int p = offset + y * stride;
+			int uv = ((y * width) >> 2) * uvStep;
+			boolean evenRow = (y & 1) == 0;
+			for (int x = 0; x < width; x++) {
+				int c = argb[p++];
+				int r = (c >> 16) & 0xff;
+				int g = (c >> 8) & 0xff;
+				int b = c & 0xff;
+				yuv[yy++] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+				if (evenRow && (x & 1) == 0) {
+					yuv[uOffset + uv] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+					yuv[vOffset + uv] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+					uv += uvStep;
+				}
+			}
+		}
+	}
+
+	/**
+	 *	Converts <tt>width</tt> x <tt>height</tt> pixels of <tt>rgba</tt> (R, G, B, A bytes, e.g. glReadPixels()) into <tt>yuv</tt>.
+	 *	The position of the buffer is not changed.
+	 *
+	 *	@param offset		the byte index of the top-left pixel in rgba
+	 *	@param rowStride	the number of bytes between rows in rgba
+	 */
+	public static void convert(ByteBuffer rgba, int offset, int rowStride, int width, int height, byte[] yuv, int format) {
+		int[] planes = planes(width, height, format);
+		int uOffset = planes[0];
+		int vOffset = planes[1];
+		int uvStep = planes[2];
+		int yy = 0;
+		for (int y = 0; y < height; y++) {
+			int p = offset + y * rowStride;
+			int uv = ((y * width) >> 2) * uvStep;
+			boolean evenRow = (y & 1) == 0;
+			for (int x = 0; x < width; x++, p += 4) {
+				int r = rgba.get(p) & 0xff;
+				int g = rgba.get(p + 1) & 0xff;
+				int b = rgba.get(p + 2) & 0xff;
+				yuv[yy++] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+				if (evenRow && (x & 1) == 0) {
+					yuv[uOffset + uv] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+					yuv[vOffset + uv] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+					uv += uvStep;
+				}
+			}
+		}
+	}
+
+	/**
+	 *	Crops, rotates and scales the <tt>srcWidth</tt> x <tt>srcHeight</tt> pixels of <tt>argb</tt>
+	 *	into <tt>dstWidth</tt> x <tt>dstHeight</tt> YUV420 in one pass, with bilinear sampling.
+	 *
+	 *	@param offset	the index of the top-left pixel of the source rectangle in argb
+	 *	@param stride	the number of pixels between rows in argb
+	 *	@param rotation	clockwise rotation in degrees, 0, 90, 180 or 270
+	 */
+	public static void convert(
+		int[] argb,
+		int offset,
+		int stride,
+		int srcWidth,
+		int srcHeight,
+		int rotation,
+		byte[] yuv,
+		int dstWidth,
+		int dstHeight,
+		int format
+	) {
+		float[] m = affine(srcWidth, srcHeight, rotation, dstWidth, dstHeight);
+		int[] planes = planes(dstWidth, dstHeight, format);
+		int uOffset = planes[0];
+		int vOffset = planes[1];
+		int uvStep = planes[2];
+		int ax = fixed(m[0]);
+		int ay = fixed(m[3]);
+		int xMax = (srcWidth - 1) << 16;
+		int yMax = (srcHeight - 1) << 16;
+		int yy = 0;
+		for (int y = 0; y < dstHeight; y++) {
+			int fx = fixed(m[1] * y + m[2]);
+			int fy = fixed(m[4] * y + m[5]);
+			int uv = ((y * dstWidth) >> 2) * uvStep;
+			boolean evenRow = (y & 1) == 0;
+			for (int x = 0; x < dstWidth; x++, fx += ax, fy += ay) {
+				int sx = Math.min(Math.max(fx, 0), xMax);
+				int sy = Math.min(Math.max(fy, 0), yMax);
+				int x0 = sx >> 16;
+				int y0 = sy >> 16;
+				int wx = (sx >> 8) & 0xff;
+				int wy = (sy >> 8) & 0xff;
+				int p0 = offset + y0 * stride + x0;
+				int p1 = y0 < srcHeight - 1 ? p0 + stride : p0;
+				int dx = x0 < srcWidth - 1 ? 1 : 0;
+				int c00 = argb[p0];
+				int c10 = argb[p0 + dx];
+				int c01 = argb[p1];
+				int c11 = argb[p1 + dx];
+				int r = lerp(c00 >> 16, c10 >> 16, c01 >> 16, c11 >> 16, wx, wy);
+				int g = lerp(c00 >> 8, c10 >> 8, c01 >> 8, c11 >> 8, wx, wy);
+				int b = lerp(c00, c10, c01, c11, wx, wy);
+				yuv[yy++] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+				if (evenRow && (x & 1) == 0) {
+					yuv[uOffset + uv] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+					yuv[vOffset + uv] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+					uv += uvStep;
+				}
+			}
+		}
+	}
+
+	private static int lerp(int c00, int c10, int c01, int c11, int wx, int wy) {
+		c00 &= 0xff;
+		c10 &= 0xff;
+		c01 &= 0xff;
+		c11 &= 0xff;
+		int top = (c00 << 8) + (c10 - c00) * wx;
+		int bottom = (c01 << 8) + (c11 - c01) * wx;
+		return ((top << 8) + (bottom - top) * wy + 0x8000) >> 16;
+	}
+
+	private static int fixed(float v) {
+		return (int)(v * 65536f);
+	}
+
+	/**
+	 *	Returns the offsets of U and V planes and the step of the chroma samples.
+	 */
+	static int[] planes(int width, int height, int format) {
+		int wh = width * height;
+		switch (format) {
+		case FORMAT_IYUV:
+			return new int[] { wh, wh + wh / 4, 1 };
+		case FORMAT_YV12:
+			return new int[] { wh + wh / 4, wh, 1 };
+		case FORMAT_NV12:
+			return new int[] { wh, wh + 1, 2 };
+		case FORMAT_NV21:
+			return new int[] { wh + 1, wh, 2 };
+		default:
+			throw new IllegalArgumentException("unknown format:" + format);
+		}
+	}
+
+	/**
+	 *	Returns the affine transform { ax, bx, cx, ay, by, cy } which maps the destination pixel (x, y)
+	 *	into the source rectangle: sx = ax * x + bx * y + cx, sy = ay * x + by * y + cy.
+	 */
+	static float[] affine(int srcWidth, int srcHeight, int rotation, int dstWidth, int dstHeight) {
+		boolean swap = rotation == 90 || rotation == 270;
+		float su = (float)(swap ? srcHeight : srcWidth) / dstWidth;
+		float sv = (float)(swap ? srcWidth : srcHeight) / dstHeight;
+		float u0 = su * 0.5f - 0.5f;
+		float v0 = sv * 0.5f - 0.5f;
+		switch (rotation) {
+		case 0:
+			return new float[] { su, 0, u0, 0, sv, v0 };
+		case 90:
+			return new float[] { 0, sv, v0, -su, 0, srcHeight - 1 - u0 };
+		case 180:
+			return new float[] { -su, 0, srcWidth - 1 - u0, 0, -sv, srcHeight - 1 - v0 };
+		case 270:
+			return new float[] { 0, -sv, srcWidth - 1 - v0, su, 0, u0 };
+		default:
+			throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270:" + rotation);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import java.io.Closeable;
+
+/**
+ *	Provides the single timer thread of {@link JasaTimer}.
+ *	Messages are handled in order by the {@link Target} in the scheduler thread.
+ */
+public interface TimerScheduler extends Closeable {
+	/**
+	 *	Starts the scheduler thread. Returns after the thread is ready to receive messages.
+	 */
+	void start(Target target);
+
+	/**
+	 *	Returns the monotonic clock in milliseconds used by {@link #sendAtTime(int, long)}.
+	 */
+	long uptimeMillis();
+
+	/**
+	 *	Enqueues a message after all pending messages.
+	 */
+	void send(int what, Object obj);
+
+	/**
+	 *	Enqueues a message to be delivered at <tt>uptimeMillis</tt>.
+	 */
+	void sendAtTime(int what, long uptimeMillis);
+
+	/**
+	 *	Removes any pending messages with code 'what' sent by {@link #sendAtTime(int, long)}.
+	 */
+	void remove(int what);
+
+	/**
+	 *	Called in the scheduler thread before the expired timers are dispatched, e.g. to open a trace section.
+	 */
+	default void beginDispatch() {
+	}
+
+	/**
+	 *	Called in the scheduler thread after the expired timers are dispatched, even if a callback throws.
+	 */
+	default void endDispatch() {
+	}
+
+	/**
+	 *	Quits the scheduler thread. Pending messages are discarded.
+	 */
+	@Override
+	void close();
+
+	interface Target {
+		void handleMessage(int what, Object obj);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ *	Fixed size ring of complete trace events, exported as Chrome trace JSON
+ *	which chrome://tracing and ui.perfetto.dev can open. The oldest events are overwritten.
+ */
+public final class TraceRecorder {
+	private final String[] names;
+	private final long[] frames, tids, starts, durations;
+	private final long origin;
+
+	private int next, count;
+
+	public TraceRecorder(int capacity) {
+		names = new String[capacity];
+		frames = new long[capacity];
+		tids = new long[capacity];
+		starts = new long[capacity];
+		durations = new long[capacity];
+		origin = System.nanoTime();
+	}
+
+	/**
+	 *	Records a section of the current thread.
+	 *
+	 *	@param frame	the frame id, -1 for none
+	 *	@param nanoStart	System.nanoTime() at the beginning
+	 */
+	public void record(String name, long frame, long nanoStart, long nanoEnd) {
+		long tid = Thread.currentThread().getId();
+		synchronized (this) {
+			names[next] = name;
+			frames[next] = frame;
+			tids[next] = tid;
+			starts[next] = nanoStart;
+			durations[next] = nanoEnd - nanoStart;
+			next = (next + 1) % names.length;
+			if (count < names.length) count++;
+		}
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized void clear() {
+		next = 0;
+		count = 0;
+	}
+
+	/**
+	 *	Writes the recorded events, the oldest first, as {"traceEvents":[...]}.
+	 */
+	public void writeChromeJson(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder(128);
+		out.write("{\"traceEvents\":[");
+		synchronized (this) {
+			int first = (next - count + names.length) % names.length;
+			for (int i = 0; i < count; i++) {
+				int k = (first + i) % names.length;
+				sb.setLength(0);
+				if (i != 0) sb.append(",\n");
+				sb.append("{\"name\":\"");
+				escape(sb, names[k]);
+				sb.append("\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(tids[k]);
+				sb.append(",\"ts\":").append((starts[k] - origin) / 1000.0);
+				sb.append(",\"dur\":").append(durations[k] / 1000.0);
+				if (0 <= frames[k]) {
+					sb.append(",\"args\":{\"frame\":").append(frames[k]).append('}');
+				}
+				sb.append('}');
+				out.write(sb.toString());
+			}
+		}
+		out.write("]}\n");
+		out.flush();
+	}
+
+	private static void escape(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package app.misono.unit206.media;
+
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES10;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import app.misono.unit206.misc.ThreadGate;
+import app.misono.unit206.task.Taskz;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ *	Composes several videos into one mp4 on the GPU, e.g. picture-in-picture or side-by-side.
+ *	Each layer is decoded into its own SurfaceTexture and drawn with its transform into the input surface
+ *	of the encoder at the output frame rate. A layer shows its latest frame whose presentation time,
+ *	relative to its first frame and its offset, is not after the output frame, and keeps its last frame after its end.
+ */
+@RequiresApi(21)
+public final class VideoCompositor {
+	private static final String	TAG = "VideoCompositor";
+	private static final long MSEC_LOST = 2000;		// a rendered frame not available in the SurfaceTexture by then is skipped
+	private static final long MSEC_DRAIN = 100;		// waits for the encoder output when the surface is backed up
+	private static final int MAX_BACKLOG = 8;		// frames swapped but not written yet before waiting
+
+	private final VideoEncoderParams params;
+	private final List<Layer> layers;
+	private final int width, height;
+
+	private volatile boolean fDone;
+	private Throwable throwable;
+	private long usecDuration;
+	private int background, frames;
+
+	/**
+	 *	@param params	null for the default, params.fps is the output frame rate
+	 */
+	public VideoCompositor(int width, int height, @Nullable VideoEncoderParams params) {
+		this.width = width;
+		this.height = height;
+		this.params = params != null ? params : new VideoEncoderParams();
+		layers = new ArrayList<>();
+		background = Color.BLACK;
+	}
+
+	/**
+	 *	Adds a layer above the ones added before. Call it before {@link #startTask(Executor, File)}.
+	 *
+	 *	@param params	params.outWidth and params.outHeight are ignored, params.holdCallback is set
+	 */
+	@NonNull
+	public Layer addLayer(@NonNull String path, @Nullable MediaDecoder.Params params) throws IOException {
+		MediaExtractor extractor = new MediaExtractor();
+		extractor.setDataSource(path);
+		return addLayer(extractor, params);
+	}
+
+	@NonNull
+	public Layer addLayer(@NonNull MediaExtractor extractor, @Nullable MediaDecoder.Params params) {
+		Layer layer = new Layer(extractor, params);
+		layers.add(layer);
+		return layer;
+	}
+
+	public void setBackgroundColor(int argb) {
+		background = argb;
+	}
+
+	/**
+	 *	@param usec	the duration of the output, 0 to end when every layer ends
+	 */
+	public void setDuration(long usec) {
+		usecDuration = usec;
+	}
+
+	/**
+	 *	Ends the output at the current frame.
+	 */
+	@AnyThread
+	public void finish() {
+		fDone = true;
+		for (Layer layer : layers) {
+			synchronized (layer) {
+				layer.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 *	Returns the number of encoded frames.
+	 */
+	@AnyThread
+	@NonNull
+	public Task<Integer> startTask(@NonNull Executor executor, @NonNull File mp4) {
+		return Taskz.call(executor, () -> compose(mp4));
+	}
+
+	@WorkerThread
+	private int compose(File mp4) throws Exception {
+		fDone = false;
+		throwable = null;
+		frames = 0;
+		ThreadGate done = new ThreadGate();
+		MediaEncoder encoder = new MediaEncoder(new MediaEncoder.Callback() {
+			@Override
+			public void done(MediaEncoder enc, int frames) {
+				VideoCompositor.this.frames = frames;
+				done.open();
+			}
+
+			@Override
+			@WorkerThread
+			public void fatalError(MediaEncoder encoder, Throwable e) {
+				Log.e(TAG, "fatalError:" + e);
+				throwable = e;
+				done.open();
+			}
+
+			@Override
+			@WorkerThread
+			public void canceled(MediaEncoder encoder) {
+			}
+
+			@Override
+			@WorkerThread
+			public void recyclePayload(MediaEncoder encoder, byte[] payload) {
+			}
+
+			@Override
+			@WorkerThread
+			public void closed(MediaEncoder encoder) {
+			}
+		});
+		try {
+			MediaFormat fmt = MediaEncoder.createVideoFormat(width, height, params);
+			Surface input = encoder.startSurface(mp4.getAbsolutePath(), fmt);
+			if (input == null) {
+				throw new IOException("encoder is not started:" + throwable);
+			}
+			drawFrames(encoder, input);
+			encoder.endOfPayload();
+			done.block();
+		} finally {
+			encoder.close();
+		}
+		if (throwable != null) {
+			throw new IOException("encoder failed", throwable);
+		}
+		return frames;
+	}
+
+	private void drawFrames(MediaEncoder encoder, Surface input) throws InterruptedException {
+		EglManager mgr = EglManager.getInstance();
+		EGLDisplay display = mgr.getDisplay();
+		EGLContext context = mgr.createRecordableContext();
+		EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+		HandlerThread frameThread = new HandlerThread("VideoCompositor.frames");
+		LayerRender render = new LayerRender();
+		try {
+			eglSurface = mgr.createWindowSurface(input);
+			if (!EGL14.eglMakeCurrent(display, eglSurface, eglSurface, context)) {
+				throw new RuntimeException("eglMakeCurrent failed");
+			}
+			render.surfaceCreated();
+			frameThread.start();
+			Handler handler = new Handler(frameThread.getLooper());
+			for (Layer layer : layers) {
+				layer.setup(render, handler);
+			}
+			float[] proj = new float[16];
+			float[] mvp = new float[16];
+			Matrix.orthoM(proj, 0, 0, width, height, 0, -1, 1);
+			int fps = Math.max(1, params.fps);
+			for (int n = 0; !fDone && throwable == null; n++) {
+				long usec = n * 1000000L / fps;
+				if (0 < usecDuration && usecDuration <= usec) break;
+
+				boolean active = false;
+				for (Layer layer : layers) {
+					active |= layer.update(usec);
+				}
+				if (!active || fDone) break;
+
+				encoder.drainOutput(n - MAX_BACKLOG, MSEC_DRAIN);
+				MediaTrace.begin("VideoCompositor.draw", usec);
+				try {
+					GLES10.glViewport(0, 0, width, height);
+					GLES10.glClearColor(Color.red(background) / 255f, Color.green(background) / 255f, Color.blue(background) / 255f, 1.0f);
+					GLES10.glClear(GLES10.GL_COLOR_BUFFER_BIT);
+					for (Layer layer : layers) {
+						if (layer.latched) {
+							layer.getMvpMatrix(proj, mvp);
+							render.draw(layer.textureId, layer.surfaceTexture, mvp, layer.alpha);
+						}
+					}
+					EGLExt.eglPresentationTimeANDROID(display, eglSurface, usec * 1000);
+					EGL14.eglSwapBuffers(display, eglSurface);
+				} finally {
+					MediaTrace.end();
+				}
+			}
+		} finally {
+			for (Layer layer : layers) {
+				layer.release();
+			}
+			frameThread.quit();
+			EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+			mgr.destroySurface(eglSurface);
+			mgr.destroyContext(context);
+			EGL14.eglReleaseThread();
+		}
+	}
+
+	/**
+	 *	A source video. The transform may be changed while composing, it is applied from the next output frame.
+	 */
+	public final class Layer {
+		private final MediaDecoder decoder;
+		private final float[] model;
+
+		private volatile Rect bounds;
+		private volatile float rotation, alpha;
+		private SurfaceTexture surfaceTexture;
+		private Surface surface;
+		private Task<Void> task;
+		private boolean latched;
+		private long usecOffset;
+		private int textureId;
+
+		//	guarded by this, shared with the decoder thread and the frame listener
+		private boolean frameAvailable, eos, closed;
+		private long usecPending;
+
+		//	the presentation time and the layer time of the latched frame
+		private long usecLast, usecLastLayer, usecDelta;
+
+		private Layer(MediaExtractor extractor, MediaDecoder.Params params) {
+			model = new float[16];
+			alpha = 1.0f;
+			usecPending = -1;
+			if (params == null) {
+				params = new MediaDecoder.Params();
+			}
+			params.holdCallback = true;					//	offer() holds the decoder until the frame is latched
+			decoder = new MediaDecoder(extractor, params, new MediaDecoder.Callback() {
+				@Override
+				public void decoded(@NonNull MediaDecoder dec, int frameNo, MediaCodec.BufferInfo info) {
+					offer(info.presentationTimeUs);
+				}
+
+				@Override
+				public void codecinfo(@NonNull MediaDecoder dec, MediaFormat fmt) {
+				}
+			});
+		}
+
+		/**
+		 *	Returns the decoder of this layer, e.g. to set a DecoderPool. Its surface is set by the compositor.
+		 */
+		@NonNull
+		public MediaDecoder getDecoder() {
+			return decoder;
+		}
+
+		/**
+		 *	@param bounds	in the output pixels from the top-left, null for the whole output
+		 */
+		public void setBounds(@Nullable Rect bounds) {
+			this.bounds = bounds != null ? new Rect(bounds) : null;
+		}
+
+		/**
+		 *	@param degrees	clockwise around the center of the bounds
+		 */
+		public void setRotation(float degrees) {
+			rotation = degrees;
+		}
+
+		public void setAlpha(float alpha) {
+			this.alpha = alpha;
+		}
+
+		/**
+		 *	Delays the first frame of this layer to <tt>usec</tt> of the output, the decoder starts then.
+		 *	Call it before {@link #startTask(Executor, File)}.
+		 */
+		public void setOffset(long usec) {
+			usecOffset = usec;
+		}
+
+		private void setup(LayerRender render, Handler handler) {
+			textureId = render.createTexture();
+			surfaceTexture = new SurfaceTexture(textureId);
+			surfaceTexture.setOnFrameAvailableListener(st -> {
+				synchronized (Layer.this) {
+					frameAvailable = true;
+					Layer.this.notifyAll();
+				}
+			}, handler);
+			surface = new Surface(surfaceTexture);
+			decoder.setSurface(surface);
+		}
+
+		/**
+		 *	Holds the decoder thread until the frame is latched, so that no frame is dropped by the SurfaceTexture.
+		 */
+		private synchronized void offer(long usec) {
+			usecPending = usec;
+			notifyAll();
+			while (0 <= usecPending && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					decoder.finish();
+					return;
+				}
+			}
+		}
+
+		private synchronized void ended() {
+			eos = true;
+			notifyAll();
+		}
+
+		/**
+		 *	Latches every frame up to the output time.
+		 *
+		 *	@return false if no more frame comes
+		 */
+		private boolean update(long usec) throws InterruptedException {
+			if (usec < usecOffset) {
+				return true;
+			}
+			if (task == null) {
+				task = decoder.startTask();
+				task.addOnCompleteListener(Runnable::run, t -> ended());
+			}
+			long usecLayer = usec - usecOffset;
+			for ( ; ; ) {
+				long pending;
+				synchronized (this) {
+					long msecLost = 0;
+					while (!frameAvailable || usecPending < 0) {
+						if (eos || fDone) {
+							return false;
+						}
+						if (usecPending < 0) {
+							wait();								// the decoder is not held here, its watchdog ends it if it stalls
+						} else if (msecLost < MSEC_LOST) {
+							wait(100);
+							msecLost += 100;
+						} else {
+							Log.w(TAG, "frame lost:" + usecPending);
+							usecPending = -1;
+							notifyAll();
+							return true;
+						}
+					}
+					pending = toLayerTime(usecPending);
+				}
+				if (latched && usecLayer < pending) {
+					return true;
+				}
+				surfaceTexture.updateTexImage();
+				synchronized (this) {
+					if (latched) {
+						usecDelta = pending - usecLastLayer;
+					}
+					usecLast = usecPending;
+					usecLastLayer = pending;
+					usecPending = -1;
+					frameAvailable = false;
+					notifyAll();
+				}
+				latched = true;
+			}
+		}
+
+		/**
+		 *	Returns the time of the frame relative to the first frame, increasing even when the decoder repeats.
+		 */
+		private long toLayerTime(long usecPts) {
+			if (!latched) {
+				return 0;
+			}
+			if (usecPts <= usecLast) {
+				return usecLastLayer + Math.max(1, usecDelta);
+			}
+			return usecLastLayer + usecPts - usecLast;
+		}
+
+		private void getMvpMatrix(float[] proj, float[] mvp) {
+			Rect r = bounds;
+			if (r == null) {
+				r = new Rect(0, 0, width, height);
+			}
+			Matrix.setIdentityM(model, 0);
+			Matrix.translateM(model, 0, r.exactCenterX(), r.exactCenterY(), 0);
+			Matrix.rotateM(model, 0, rotation, 0, 0, 1);
+			Matrix.scaleM(model, 0, r.width() / 2f, -r.height() / 2f, 1);		// the texture is bottom-up
+			Matrix.multiplyMM(mvp, 0, proj, 0, model, 0);
+		}
+
+		private void release() {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			decoder.finish();
+			if (task != null) {
+				try {
+					Tasks.await(task);
+				} catch (ExecutionException | InterruptedException e) {
+					Log.w(TAG, "decoder:" + e);
+				}
+			}
+			if (surface != null) {
+				surface.release();
+				surface = null;
+			}
+			if (surfaceTexture != null) {
+				surfaceTexture.release();
+				surfaceTexture = null;
+			}
+			if (textureId != 0) {
+				GLES10.glDeleteTextures(1, new int[] { textureId }, 0);
+				textureId = 0;
+			}
+		}
+	}
+
+	/**
+	 *	Draws an external texture with the model-view-projection matrix and the opacity.
+	 */
+	private static final class LayerRender {
+		private static final String FRAGMENT_SHADER =
+			"#extension GL_OES_EGL_image_external : require\n"		+
+			"precision mediump float;\n"							+
+			"varying vec2 vTextureCoord;\n"							+
+			"uniform samplerExternalOES sTexture;\n"				+
+			"uniform float uAlpha;\n"								+
+			"void main() {\n"										+
+			" gl_FragColor = vec4(texture2D(sTexture, vTextureCoord).rgb, uAlpha);\n"	+
+			"}\n";
+
+		private final FloatBuffer vertices;
+		private final float[] stMatrix;
+
+		private int program, umvpMatrixHandle, ustMatrixHandle, uAlphaHandle, aPositionHandle, aTextureHandle;
+
+		private LayerRender() {
+			stMatrix = new float[16];
+			vertices = GlUtil.newQuad();
+		}
+
+		private void surfaceCreated() {
+			program = GlUtil.createProgram(GlUtil.VERTEX_SHADER, FRAGMENT_SHADER);
+			if (program == 0) {
+				throw new RuntimeException("failed creating program");
+			}
+			aPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
+			aTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
+			umvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
+			ustMatrixHandle = GLES20.glGetUniformLocation(program, "uSTMatrix");
+			uAlphaHandle = GLES20.glGetUniformLocation(program, "uAlpha");
+			GLES20.glEnable(GLES20.GL_BLEND);
+			GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+			GlUtil.checkGlError("surfaceCreated");
+		}
+
+		private int createTexture() {
+			int[] textures = new int[1];
+			GLES10.glGenTextures(1, textures, 0);
+			GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+			GLES10.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_LINEAR);
+			GLES10.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_LINEAR);
+			GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_WRAP_S, GLES10.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES10.GL_TEXTURE_WRAP_T, GLES10.GL_CLAMP_TO_EDGE);
+			GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+			GlUtil.checkGlError("createTexture");
+			return textures[0];
+		}
+
+		private void draw(int textureId, SurfaceTexture st, float[] mvp, float alpha) {
+			st.getTransformMatrix(stMatrix);
+			GLES20.glUseProgram(program);
+			GLES10.glActiveTexture(GLES10.GL_TEXTURE0);
+			GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+			GlUtil.bindQuad(vertices, aPositionHandle, aTextureHandle);
+			GLES20.glUniformMatrix4fv(umvpMatrixHandle, 1, false, mvp, 0);
+			GLES20.glUniformMatrix4fv(ustMatrixHandle, 1, false, stMatrix, 0);
+			GLES20.glUniform1f(uAlphaHandle, alpha);
+			GLES10.glDrawArrays(GLES10.GL_TRIANGLE_STRIP, 0, 4);
+			GLES10.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+			GlUtil.checkGlError("draw");
+		}
+	}
+
+}
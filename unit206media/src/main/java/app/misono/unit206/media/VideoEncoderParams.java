@@ -16,17 +16,203 @@
 
 package app.misono.unit206.media;
 
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+
 public class VideoEncoderParams {
+	private static final String TAG = "VideoEncoderParams";
+
+	public static final int UNSET = -1;
+	public static final String MIME_AVC = "video/avc";			//	MediaFormat.MIMETYPE_VIDEO_AVC
+	public static final String MIME_HEVC = "video/hevc";		//	MediaFormat.MIMETYPE_VIDEO_HEVC
+	public static final String MIME_AV1 = "video/av01";			//	MediaFormat.MIMETYPE_VIDEO_AV1
+	public static final float OPERATING_RATE_MAX = Float.MAX_VALUE;	//	the highest frame rate the encoder supports
+
 	public String mimeType;
+	public String[] fallbackMimeTypes;	//	tried in order when mimeType has no hardware encoder
 	public int intervalKeyFrame;
 	public int bitRate;
 	public int fps;
 
+	public int priority;				//	KEY_PRIORITY, 0: realtime, 1: best effort
+	public float operatingRate;			//	KEY_OPERATING_RATE in frames per second, 0: unset
+	public int latency;					//	KEY_LATENCY in frames, only for encoders supporting FEATURE_LowLatency
+	public int bitrateMode;				//	MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*
+	public int profile;					//	MediaCodecInfo.CodecProfileLevel
+	public int level;					//	MediaCodecInfo.CodecProfileLevel, UNSET for any level of the profile
+	public int complexity;				//	KEY_COMPLEXITY, used in the constant quality or lossless modes
+	public int quality;					//	KEY_QUALITY for BITRATE_MODE_CQ
+
 	public VideoEncoderParams() {
-		mimeType = "video/avc";
+		mimeType = MIME_AVC;
 		intervalKeyFrame = 1;			// key frame: 1sec
 		bitRate = 1024 * 1024;
 		fps = 30;
+		priority = UNSET;
+		latency = UNSET;
+		bitrateMode = UNSET;
+		profile = UNSET;
+		level = UNSET;
+		complexity = UNSET;
+		quality = UNSET;
+	}
+
+	/**
+	 *	Prefers HEVC, then AV1, then AVC.
+	 */
+	public VideoEncoderParams setSmallest() {
+		mimeType = MIME_HEVC;
+		fallbackMimeTypes = new String[] { MIME_AV1, MIME_AVC };
+		return this;
+	}
+
+	/**
+	 *	Returns the first of mimeType and fallbackMimeTypes which has a hardware encoder
+	 *	accepting YUV420 input at the size. If none, the first one having any such encoder.
+	 *
+	 *	@throws IllegalStateException	no encoder found.
+	 */
+	@NonNull
+	public String resolveMimeType(int width, int height) {
+		String any = null;
+		for (String mime : getMimeTypes()) {
+			for (CodecSelector.Rank rank : CodecSelector.getEncoders(mime, width, height)) {
+				if (hasYuv420(rank)) {
+					if (rank.hardware) return mime;
+					if (any == null) any = mime;
+				}
+			}
+		}
+		if (any == null) {
+			throw new IllegalStateException("no encoder for " + mimeType + " " + width + "x" + height);
+		}
+		return any;
+	}
+
+	private String[] getMimeTypes() {
+		int n = fallbackMimeTypes != null ? fallbackMimeTypes.length : 0;
+		String[] rc = new String[n + 1];
+		rc[0] = mimeType;
+		for (int i = 0; i < n; i++) {
+			rc[i + 1] = fallbackMimeTypes[i];
+		}
+		return rc;
+	}
+
+	private static boolean hasYuv420(CodecSelector.Rank rank) {
+		return rank.hasColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)
+			|| rank.hasColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+	}
+
+	/**
+	 *	Asks the codec to run as fast as it can, for offline encoding.
+	 *	The operating rate is the upper supported frame rate of the encoder.
+	 */
+	public VideoEncoderParams setBatch() {
+		priority = 1;
+		operatingRate = OPERATING_RATE_MAX;
+		return this;
+	}
+
+	/**
+	 *	Sets the tuning fields into <tt>fmt</tt>. Each field is checked against the capabilities of the encoder
+	 *	{@link CodecSelector} picks for <tt>fmt</tt>, so set KEY_MIME, the size and KEY_COLOR_FORMAT before.
+	 *	Unsupported values are clamped or skipped with a warning.
+	 */
+	public void applyTo(@NonNull MediaFormat fmt) {
+		CodecSelector.Rank rank = CodecSelector.findEncoder(fmt);
+		MediaCodecInfo.CodecCapabilities caps = rank != null ? rank.capabilities : null;
+		if (23 <= Build.VERSION.SDK_INT) {
+			if (priority == 0 || priority == 1) {
+				fmt.setInteger(MediaFormat.KEY_PRIORITY, priority);
+			} else if (priority != UNSET) {
+				Log.w(TAG, "unsupported priority:" + priority);
+			}
+			if (0 < operatingRate) {
+				applyOperatingRate(fmt, caps);
+			}
+		}
+		if (latency != UNSET) {
+			if (30 <= Build.VERSION.SDK_INT && caps != null
+					&& caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency)) {
+				fmt.setInteger(MediaFormat.KEY_LATENCY, latency);
+			} else {
+				Log.w(TAG, "KEY_LATENCY is not supported, skipped:" + latency);
+			}
+		}
+		if (profile != UNSET) {
+			if (supportsProfile(caps)) {
+				fmt.setInteger(MediaFormat.KEY_PROFILE, profile);
+				if (level != UNSET && 23 <= Build.VERSION.SDK_INT) {
+					fmt.setInteger(MediaFormat.KEY_LEVEL, level);
+				}
+			} else {
+				Log.w(TAG, "unsupported profile:" + profile + " level:" + level);
+			}
+		}
+		if (21 <= Build.VERSION.SDK_INT && caps != null) {
+			applyEncoderCapabilities(fmt, caps.getEncoderCapabilities());
+		}
+	}
+
+	/**
+	 *	Clamps the operating rate to the frame rates the encoder supports at the size of <tt>fmt</tt>.
+	 *	{@link #OPERATING_RATE_MAX} is skipped when the encoder is unknown.
+	 */
+	private void applyOperatingRate(MediaFormat fmt, MediaCodecInfo.CodecCapabilities caps) {
+		MediaCodecInfo.VideoCapabilities video = caps != null ? caps.getVideoCapabilities() : null;
+		if (video == null) {
+			if (operatingRate != OPERATING_RATE_MAX) {
+				fmt.setFloat(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+			} else {
+				Log.w(TAG, "unknown encoder, operating rate skipped");
+			}
+			return;
+		}
+		int width = fmt.containsKey(MediaFormat.KEY_WIDTH) ? fmt.getInteger(MediaFormat.KEY_WIDTH) : 0;
+		int height = fmt.containsKey(MediaFormat.KEY_HEIGHT) ? fmt.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+		double upper;
+		if (0 < width && 0 < height && video.isSizeSupported(width, height)) {
+			upper = video.getSupportedFrameRatesFor(width, height).getUpper();
+		} else {
+			upper = video.getSupportedFrameRates().getUpper();
+		}
+		fmt.setFloat(MediaFormat.KEY_OPERATING_RATE, (float)Math.min(operatingRate, upper));
+	}
+
+	private boolean supportsProfile(MediaCodecInfo.CodecCapabilities caps) {
+		if (caps == null || caps.profileLevels == null) return false;
+		for (MediaCodecInfo.CodecProfileLevel pl : caps.profileLevels) {
+			if (pl.profile == profile && (level == UNSET || level <= pl.level)) return true;
+		}
+		return false;
+	}
+
+	private void applyEncoderCapabilities(MediaFormat fmt, MediaCodecInfo.EncoderCapabilities enc) {
+		if (enc == null) return;
+		if (bitrateMode != UNSET) {
+			if (enc.isBitrateModeSupported(bitrateMode)) {
+				fmt.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+			} else {
+				Log.w(TAG, "unsupported bitrate mode:" + bitrateMode);
+			}
+		}
+		if (complexity != UNSET) {
+			fmt.setInteger(MediaFormat.KEY_COMPLEXITY, clamp(complexity, enc.getComplexityRange()));
+		}
+		if (quality != UNSET && 28 <= Build.VERSION.SDK_INT) {
+			fmt.setInteger(MediaFormat.KEY_QUALITY, clamp(quality, enc.getQualityRange()));
+		}
+	}
+
+	private static int clamp(int value, Range<Integer> range) {
+		if (range == null) return value;
+		return Math.max(range.getLower(), Math.min(range.getUpper(), value));
 	}
 
 }
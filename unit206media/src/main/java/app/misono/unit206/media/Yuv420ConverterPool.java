@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.renderscript.RSInvalidStateException;
+import android.renderscript.RenderScript;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import app.misono.unit206.task.Taskz;
+
+import com.google.android.gms.tasks.Task;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *	Converts Bitmap(ARGB_8888) to YUV420 for many encoders with one RenderScript context
+ *	and a bounded number of workers. Converters are cached by resolution with their Allocations,
+ *	so the memory does not grow with the number of encoders.
+ */
+public final class Yuv420ConverterPool implements Closeable {
+	private static final String TAG = "Yuv420ConverterPool";
+
+	private static Yuv420ConverterPool me;
+
+	private final Map<Long, ArrayDeque<Yuv420PlanarAlone>> idle;
+	private final ExecutorService executor;
+	private final RenderScript rs;
+	private final int workers;
+
+	private boolean closed;
+
+	public Yuv420ConverterPool(@NonNull Context ctx, int workers) {
+		this.workers = workers;
+		rs = RenderScript.create(ctx);
+		idle = new HashMap<>();
+		executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread th = new Thread(r, TAG);
+			th.setDaemon(true);
+			return th;
+		});
+	}
+
+	/**
+	 *	Returns the pool shared in the process, with half of the processors as the workers.
+	 */
+	@NonNull
+	public static synchronized Yuv420ConverterPool getInstance(@NonNull Context ctx) {
+		if (me == null) {
+			int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+			me = new Yuv420ConverterPool(ctx.getApplicationContext(), workers);
+		}
+		return me;
+	}
+
+	/**
+	 *	Converts <tt>bitmap</tt> in a worker and waits for it.
+	 *
+	 *	@param yuv	the output array, or null to allocate it
+	 *	@param format	one of Rgb2Yuv.FORMAT_*
+	 */
+	@WorkerThread
+	@NonNull
+	public byte[] convert(@Nullable byte[] yuv, @NonNull Bitmap bitmap, int format) throws InterruptedException {
+		try {
+			long frame = MediaTrace.getFrame();
+			return executor.submit(() -> run(yuv, bitmap, format, frame)).get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 *	Converts <tt>bitmap</tt> in a worker.
+	 */
+	@AnyThread
+	@NonNull
+	public Task<byte[]> convertTask(@Nullable byte[] yuv, @NonNull Bitmap bitmap, int format) {
+		long frame = MediaTrace.getFrame();
+		return Taskz.call(executor, () -> run(yuv, bitmap, format, frame));
+	}
+
+	private byte[] run(byte[] yuv, Bitmap bitmap, int format, long frame) {
+		long key = (long)bitmap.getWidth() << 32 | bitmap.getHeight();
+		MediaTrace.begin("Yuv420ConverterPool.run", frame);
+		Yuv420PlanarAlone conv = obtain(key);
+		try {
+			return conv.convert(yuv, bitmap, format);
+		} finally {
+			recycle(key, conv);
+			MediaTrace.end();
+		}
+	}
+
+	private Yuv420PlanarAlone obtain(long key) {
+		synchronized (idle) {
+			if (closed) {
+				throw new IllegalStateException("Yuv420ConverterPool is already closed...");
+			}
+			ArrayDeque<Yuv420PlanarAlone> q = idle.get(key);
+			if (q != null && !q.isEmpty()) {
+				return q.pop();
+			}
+		}
+		return new Yuv420PlanarAlone(rs);
+	}
+
+	private void recycle(long key, Yuv420PlanarAlone conv) {
+		synchronized (idle) {
+			if (!closed) {
+				ArrayDeque<Yuv420PlanarAlone> q = idle.get(key);
+				if (q == null) {
+					q = new ArrayDeque<>();
+					idle.put(key, q);
+				}
+				if (q.size() < workers) {
+					q.push(conv);
+					return;
+				}
+			}
+		}
+		destroy(conv);
+	}
+
+	/**
+	 *	Returns the number of cached converters.
+	 */
+	@AnyThread
+	public int getIdleCount() {
+		synchronized (idle) {
+			int rc = 0;
+			for (ArrayDeque<Yuv420PlanarAlone> q : idle.values()) {
+				rc += q.size();
+			}
+			return rc;
+		}
+	}
+
+	/**
+	 *	Destroys the cached converters and their Allocations.
+	 */
+	@AnyThread
+	public void trim() {
+		List<Yuv420PlanarAlone> list = new ArrayList<>();
+		synchronized (idle) {
+			for (ArrayDeque<Yuv420PlanarAlone> q : idle.values()) {
+				list.addAll(q);
+			}
+			idle.clear();
+		}
+		for (Yuv420PlanarAlone conv : list) {
+			destroy(conv);
+		}
+	}
+
+	private static void destroy(Yuv420PlanarAlone conv) {
+		try {
+			conv.close();
+		} catch (RSInvalidStateException e) {
+			//	nop
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (Yuv420ConverterPool.class) {
+			if (me == this) {
+				me = null;
+			}
+		}
+		synchronized (idle) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		trim();
+		rs.destroy();
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-2022 Atelier Misono, Inc. @ https://misono.app/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package app.misono.unit206.media;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ *	Packs YUV_420_888 Image, e.g. from a camera or ImageReader, into the YUV420 layout of the encoder.
+ */
+public final class Yuv420Image {
+	private Yuv420Image() {
+	}
+
+	/**
+	 *	Copies <tt>image</tt> into <tt>yuv</tt> honoring the row and pixel strides of each plane.
+	 *
+	 *	@param format	one of Rgb2Yuv.FORMAT_*
+	 */
+	public static void copy(@NonNull Image image, @NonNull byte[] yuv, int format) {
+		if (image.getFormat() != ImageFormat.YUV_420_888) {
+			throw new IllegalArgumentException("image format is not YUV_420_888:" + image.getFormat());
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] planes = Rgb2Yuv.planes(width, height, format);
+		Image.Plane[] p = image.getPlanes();
+		copyPlane(p[0], width, height, yuv, 0, 1);
+		copyPlane(p[1], width / 2, height / 2, yuv, planes[0], planes[2]);
+		copyPlane(p[2], width / 2, height / 2, yuv, planes[1], planes[2]);
+	}
+
+	private static void copyPlane(Image.Plane plane, int width, int height, byte[] dst, int offset, int step) {
+		ByteBuffer buf = plane.getBuffer();
+		int rowStride = plane.getRowStride();
+		int pixelStride = plane.getPixelStride();
+		int base = buf.position();
+		if (pixelStride == 1 && step == 1) {
+			ByteBuffer src = buf.duplicate();
+			for (int y = 0; y < height; y++) {
+				src.position(base + y * rowStride);
+				src.get(dst, offset + y * width, width);
+			}
+		} else {
+			int d = offset;
+			for (int y = 0; y < height; y++) {
+				int s = base + y * rowStride;
+				for (int x = 0; x < width; x++, s += pixelStride, d += step) {
+					dst[d] = buf.get(s);
+				}
+			}
+		}
+	}
+}
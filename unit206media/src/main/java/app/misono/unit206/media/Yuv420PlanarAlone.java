@@ -18,10 +18,12 @@ package app.misono.unit206.media;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RSInvalidStateException;
 import android.renderscript.RenderScript;
+import android.renderscript.Type;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -30,21 +32,41 @@ import java.io.Closeable;
 
 /**
  *	Converts Bitmap(ARGB_8888) to YUV420Planar or YUV420SemiPlanar.
+ *	The Allocations are kept for the next conversion of the same size if they fit in {@link MediaMemoryBudget},
+ *	otherwise they are destroyed after each conversion.
  */
 public final class Yuv420PlanarAlone implements Closeable {
-	public static final int	FORMAT_IYUV	= 0;				//	YYYYYYYY UU VV	YUV420p
-	public static final int	FORMAT_YV12	= 1;				//	YYYYYYYY VV UU	YUV420p
-	public static final int	FORMAT_NV12	= 2;				//	YYYYYYYY UVUV	YUV420sp
-	public static final int	FORMAT_NV21	= 3;				//	YYYYYYYY VUVU	YUV420sp
+	public static final int	FORMAT_IYUV	= Rgb2Yuv.FORMAT_IYUV;		//	YYYYYYYY UU VV	YUV420p
+	public static final int	FORMAT_YV12	= Rgb2Yuv.FORMAT_YV12;		//	YYYYYYYY VV UU	YUV420p
+	public static final int	FORMAT_NV12	= Rgb2Yuv.FORMAT_NV12;		//	YYYYYYYY UVUV	YUV420sp
+	public static final int	FORMAT_NV21	= Rgb2Yuv.FORMAT_NV21;		//	YYYYYYYY VUVU	YUV420sp
+
+	private final MediaMemoryBudget budget;
+	private final boolean ownsRs;
+
+	private boolean inAcquired, outAcquired, scaledAcquired;
 
 	private ScriptC_rgb2yuv script;
 	private RenderScript rs;
-	private Allocation inAlloc, outAlloc;
-	private int yuvSize;
+	private Allocation inAlloc, outAlloc, yAlloc, uvAlloc;
+	private byte[] uvBuf;
+	private int yuvSize, inWidth, inHeight, scaledWidth, scaledHeight;
 
 	public Yuv420PlanarAlone(@NonNull Context ctx) {
 		rs = RenderScript.create(ctx);
 		script = new ScriptC_rgb2yuv(rs);
+		budget = MediaMemoryBudget.getInstance();
+		ownsRs = true;
+	}
+
+	/**
+	 *	Creates a converter on the RenderScript context shared with others. close() does not destroy <tt>rs</tt>.
+	 */
+	Yuv420PlanarAlone(@NonNull RenderScript rs) {
+		this.rs = rs;
+		script = new ScriptC_rgb2yuv(rs);
+		budget = MediaMemoryBudget.getInstance();
+		ownsRs = false;
 	}
 
 	public byte[] convert(Bitmap bitmap, int format) {
@@ -77,35 +99,172 @@ public final class Yuv420PlanarAlone implements Closeable {
 				yuv = new byte[size];
 			}
 			if (size != yuvSize) {
-				clearAlloc();
+				destroyOut();
 				yuvSize = size;
-				inAlloc = Allocation.createFromBitmap(rs, bitmap, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+				outAcquired = budget.tryAcquireOrCharge(MediaMemoryBudget.COMPONENT_ALLOCATION, size);
 				outAlloc = Allocation.createSized(rs, Element.U8(rs), size);
-			} else {
-				inAlloc.copyFrom(bitmap);
 			}
-			script.bind_out(outAlloc);
-			script.set_inAlloc(inAlloc);
-			script.invoke_setup(format);
-			script.forEach_root(inAlloc, inAlloc);
-			outAlloc.copyTo(yuv);
+			MediaTrace.begin("Yuv420PlanarAlone.convert");
+			try {
+				copyIn(bitmap);
+				script.bind_out(outAlloc);
+				script.set_inAlloc(inAlloc);
+				script.invoke_setup(format);
+				script.forEach_root(inAlloc, inAlloc);
+				outAlloc.copyTo(yuv);
+			} finally {
+				dropUnacquired();
+				MediaTrace.end();
+			}
 		} else {
 			throw new IllegalStateException("Yuv420PlanarAlone is already closed...");
 		}
 		return yuv;
 	}
 
-	private void clearAlloc() {
+	/**
+	 *	Converts the <tt>src</tt> rectangle of the bitmap into <tt>dstWidth</tt> x <tt>dstHeight</tt> YUV420,
+	 *	rotated clockwise by <tt>rotation</tt> degrees. Cropping, rotation and bilinear scaling are done
+	 *	in the same kernel as the color conversion, instead of Bitmap.createScaledBitmap() before it.
+	 *
+	 *	@param src		the source rectangle, null for the whole bitmap
+	 *	@param rotation	0, 90, 180 or 270
+	 *	@throws IllegalArgumentException	if src is empty or not inside the bitmap
+	 */
+	public byte[] convert(
+		@Nullable byte[] yuv,
+		@NonNull Bitmap bitmap,
+		@Nullable Rect src,
+		int rotation,
+		int dstWidth,
+		int dstHeight,
+		int format
+	) {
+		if (script == null) {
+			throw new IllegalStateException("Yuv420PlanarAlone is already closed...");
+		}
+		if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+			throw new RuntimeException("bitmap.config is not ARGB_8888...");
+		}
+		if ((dstWidth & 1) != 0 || (dstHeight & 1) != 0) {
+			throw new IllegalArgumentException("odd size:" + dstWidth + "x" + dstHeight);
+		}
+		Rect r = src != null ? src : new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+		if (r.left < 0 || r.top < 0 || r.right > bitmap.getWidth() || r.bottom > bitmap.getHeight()
+				|| r.left >= r.right || r.top >= r.bottom) {
+			throw new IllegalArgumentException("src is out of the bitmap:" + r.left + "," + r.top + "-" + r.right + "," + r.bottom);
+		}
+		float[] m = Rgb2Yuv.affine(r.width(), r.height(), rotation, dstWidth, dstHeight);
+		if (yuv == null) {
+			yuv = createYuv(dstWidth, dstHeight);
+		}
+		if (dstWidth != scaledWidth || dstHeight != scaledHeight) {
+			destroyScaled();
+			scaledWidth = dstWidth;
+			scaledHeight = dstHeight;
+			scaledAcquired = budget.tryAcquireOrCharge(MediaMemoryBudget.COMPONENT_ALLOCATION, Rgb2Yuv.yuvSize(dstWidth, dstHeight));
+			Type type = Type.createXY(rs, Element.U8(rs), dstWidth, dstHeight);
+			yAlloc = Allocation.createTyped(rs, type, Allocation.USAGE_SCRIPT);
+			uvAlloc = Allocation.createSized(rs, Element.U8(rs), dstWidth * dstHeight / 2);
+			uvBuf = new byte[dstWidth * dstHeight / 2];
+		}
+		MediaTrace.begin("Yuv420PlanarAlone.convert");
+		try {
+			copyIn(bitmap);
+			script.set_uvAlloc(uvAlloc);
+			script.set_inAlloc(inAlloc);
+			script.set_srcLeft(r.left);
+			script.set_srcTop(r.top);
+			script.set_srcWidth(r.width());
+			script.set_srcHeight(r.height());
+			script.set_ax(m[0]);
+			script.set_bx(m[1]);
+			script.set_cx(m[2]);
+			script.set_ay(m[3]);
+			script.set_by(m[4]);
+			script.set_cy(m[5]);
+			script.invoke_setupScaled(format, dstWidth, dstHeight);
+			script.forEach_scale(yAlloc);
+			yAlloc.copyTo(yuv);								//	the Y plane, yuv is longer than yAlloc
+			uvAlloc.copyTo(uvBuf);
+			System.arraycopy(uvBuf, 0, yuv, dstWidth * dstHeight, uvBuf.length);
+		} finally {
+			dropUnacquired();
+			MediaTrace.end();
+		}
+		return yuv;
+	}
+
+	private void copyIn(Bitmap bitmap) {
+		if (inAlloc != null && bitmap.getWidth() == inWidth && bitmap.getHeight() == inHeight) {
+			inAlloc.copyFrom(bitmap);
+		} else {
+			destroyIn();
+			inWidth = bitmap.getWidth();
+			inHeight = bitmap.getHeight();
+			inAcquired = budget.tryAcquireOrCharge(MediaMemoryBudget.COMPONENT_ALLOCATION, inWidth * inHeight * 4L);
+			inAlloc = Allocation.createFromBitmap(rs, bitmap, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+		}
+	}
+
+	/**
+	 *	Destroys the Allocations not reserved in the budget, they are created again by the next conversion.
+	 */
+	private void dropUnacquired() {
+		if (!inAcquired) {
+			destroyIn();
+			inWidth = 0;
+			inHeight = 0;
+		}
+		if (!outAcquired) {
+			destroyOut();
+			yuvSize = 0;
+		}
+		if (!scaledAcquired) {
+			destroyScaled();
+			scaledWidth = 0;
+			scaledHeight = 0;
+		}
+	}
+
+	private void destroyIn() {
 		if (inAlloc != null) {
 			inAlloc.destroy();
 			inAlloc	= null;
+			budget.release(MediaMemoryBudget.COMPONENT_ALLOCATION, inWidth * inHeight * 4L, inAcquired);
 		}
+	}
+
+	private void destroyOut() {
 		if (outAlloc != null) {
 			outAlloc.destroy();
 			outAlloc = null;
+			budget.release(MediaMemoryBudget.COMPONENT_ALLOCATION, yuvSize, outAcquired);
 		}
 	}
 
+	private void destroyScaled() {
+		if (yAlloc != null) {
+			yAlloc.destroy();
+			uvAlloc.destroy();
+			yAlloc = null;
+			uvAlloc = null;
+			uvBuf = null;
+			budget.release(MediaMemoryBudget.COMPONENT_ALLOCATION, Rgb2Yuv.yuvSize(scaledWidth, scaledHeight), scaledAcquired);
+		}
+	}
+
+	private void clearAlloc() {
+		destroyIn();
+		destroyOut();
+		destroyScaled();
+		inWidth = 0;
+		inHeight = 0;
+		yuvSize = 0;
+		scaledWidth = 0;
+		scaledHeight = 0;
+	}
+
 	@Override
 	public void close() {
 		clearAlloc();
@@ -118,7 +277,9 @@ public final class Yuv420PlanarAlone implements Closeable {
 			script = null;
 		}
 		if (rs != null) {
-			rs.destroy();
+			if (ownsRs) {
+				rs.destroy();
+			}
 			rs = null;
 		}
 	}
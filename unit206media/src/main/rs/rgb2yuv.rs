@@ -28,6 +28,14 @@ rs_allocation	inAlloc;
 uint32_t		width, height, uvStep;
 uint8_t			*out, *yy, *uu, *vv;
 
+//	for scale(): the source rectangle and the affine transform from the destination pixel.
+int32_t			srcLeft, srcTop, srcWidth, srcHeight;
+float			ax, bx, cx, ay, by, cy;
+
+//	for scale(): the U and V planes, apart from the Y plane which is the output of the kernel.
+rs_allocation	uvAlloc;
+uint32_t		uOff, vOff;
+
 void root(const uchar4 *v_in, uchar4 *v_out, uint32_t x, uint32_t y) {
 	float4		argb;
 	uint32_t	xy;
@@ -42,12 +50,43 @@ void root(const uchar4 *v_in, uchar4 *v_out, uint32_t x, uint32_t y) {
 	}
 }
 
-void setup(int format) {
+/*
+ *	Crops, rotates and scales inAlloc with bilinear sampling.
+ *	Launched over the destination Y plane, returns Y and writes U and V into uvAlloc.
+ *	The output allocation is never written through a pointer, that is undefined in RenderScript.
+ */
+uchar RS_KERNEL scale(uint32_t x, uint32_t y) {
+	float		sx, sy, fx, fy;
+	int32_t		x0, y0, x1, y1;
+	float4		argb;
+	uint32_t	xy;
+
+	sx		= clamp(ax * x + bx * y + cx, 0.0f, (float)(srcWidth - 1));
+	sy		= clamp(ay * x + by * y + cy, 0.0f, (float)(srcHeight - 1));
+	x0		= (int32_t)sx;
+	y0		= (int32_t)sy;
+	x1		= min(x0 + 1, srcWidth - 1);
+	y1		= min(y0 + 1, srcHeight - 1);
+	fx		= sx - x0;
+	fy		= sy - y0;
+	argb	= mix(
+		mix(rsUnpackColor8888(rsGetElementAt_uchar4(inAlloc, srcLeft + x0, srcTop + y0)),
+			rsUnpackColor8888(rsGetElementAt_uchar4(inAlloc, srcLeft + x1, srcTop + y0)), fx),
+		mix(rsUnpackColor8888(rsGetElementAt_uchar4(inAlloc, srcLeft + x0, srcTop + y1)),
+			rsUnpackColor8888(rsGetElementAt_uchar4(inAlloc, srcLeft + x1, srcTop + y1)), fx),
+		fy);
+	if ((x & 1) == 0 && (y & 1) == 0) {
+		xy		= (((y * width) >> 2) + (x >> 1)) * uvStep;
+		rsSetElementAt_uchar(uvAlloc, (uchar)((-0.148223 * argb.r - 0.290993 * argb.g + 0.439216 * argb.b) * 256 + 128), uOff + xy);
+		rsSetElementAt_uchar(uvAlloc, (uchar)(( 0.439216 * argb.r - 0.367788 * argb.g - 0.071427 * argb.b) * 256 + 128), vOff + xy);
+	}
+	return (0.256788 * argb.r + 0.504129 * argb.g + 0.097906 * argb.b) * 256 + 16;
+}
+
+static void setPlanes(int format) {
 	uint32_t	wh;
 	uint8_t		*uv;
 
-	width	= rsAllocationGetDimX(inAlloc);
-	height	= rsAllocationGetDimY(inAlloc);
 	wh		= width * height;
 	yy		= out;
 	uv		= &out[wh];
@@ -75,6 +114,46 @@ void setup(int format) {
 	}
 }
 
+void setup(int format) {
+	width	= rsAllocationGetDimX(inAlloc);
+	height	= rsAllocationGetDimY(inAlloc);
+	setPlanes(format);
+}
+
+/*
+ *	Prepares scale() which writes the dstWidth x dstHeight Y plane into its output
+ *	and the U and V planes of the format into uvAlloc.
+ */
+void setupScaled(int format, uint32_t dstWidth, uint32_t dstHeight) {
+	uint32_t	quarter;
+
+	width	= dstWidth;
+	height	= dstHeight;
+	quarter	= dstWidth * dstHeight / 4;
+	switch (format) {
+	case 0:								//	FORMAT_IYUV: UU VV
+		uOff	= 0;
+		vOff	= quarter;
+		uvStep	= 1;
+		break;
+	case 1:								//	FORMAT_YV12: VV UU
+		vOff	= 0;
+		uOff	= quarter;
+		uvStep	= 1;
+		break;
+	case 2:								//	FORMAT_NV12: UVUV
+		uOff	= 0;
+		vOff	= 1;
+		uvStep	= 2;
+		break;
+	case 3:								//	FORMAT_NV21: VUVU
+		vOff	= 0;
+		uOff	= 1;
+		uvStep	= 2;
+		break;
+	}
+}
+
 /*
  *	end of file
  */